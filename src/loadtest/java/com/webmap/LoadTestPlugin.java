@@ -0,0 +1,111 @@
+package com.webmap;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stand-in for the real plugin when driving WebServer outside a Nukkit server
+ * Serves a generated map image, column data and coverage from a temporary data folder and a fixed player snapshot.
+ */
+public class LoadTestPlugin extends WebMapPlugin {
+
+    private final File mapFolder;
+    private final Map<String, MapInfo> maps = new HashMap<>();
+    private final PlayerFeed feed;
+    private final ColumnStore columns;
+    private final TrailRecorder trails;
+    private final ActivityHeatmap heatmap;
+    private final RateLimiter.Settings rateLimit = new RateLimiter.Settings();
+
+    public LoadTestPlugin(File dataFolder, String world, int mapSize, int players) throws IOException {
+        this.mapFolder = new File(dataFolder, "maps");
+        mapFolder.mkdirs();
+
+        // Noise compresses about as badly as a real terrain render
+        Random random = new Random(42);
+        BufferedImage img = new BufferedImage(mapSize, mapSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        for (int y = 0; y < mapSize; y += 12) {
+            for (int x = 0; x < mapSize; x += 12) {
+                g.setColor(new Color(random.nextInt(0xFFFFFF)));
+                g.fillRect(x, y, 12, 12);
+            }
+        }
+        g.dispose();
+        ImageIO.write(img, "PNG", new File(mapFolder, world + ".png"));
+
+        int blocks = mapSize / 12;
+        MapInfo info = new MapInfo();
+        info.worldName = world;
+        info.width = mapSize;
+        info.height = mapSize;
+        info.lastUpdate = System.currentTimeMillis();
+        info.blockMinX = -blocks / 2;
+        info.blockMaxX = blocks / 2;
+        info.blockMinZ = -blocks / 2;
+        info.blockMaxZ = blocks / 2;
+        maps.put(world, info);
+        
+        // Column data matching the image, as a full render would leave it
+        int minC = info.blockMinX >> 4, maxC = (info.blockMaxX - 1) >> 4;
+        this.columns = ColumnStore.create(new File(mapFolder, world + ".columns"), minC, minC, maxC - minC + 1, maxC - minC + 1);
+        ChunkCoverage coverage = getCoverage(world);
+        int version = coverage.beginRender();
+        long[] chunk = new long[256];
+        for (int cx = minC; cx <= maxC; cx++) {
+            for (int cz = minC; cz <= maxC; cz++) {
+                for (int i = 0; i < 256; i++) {
+                    int px = Math.floorMod(((cx << 4) + (i & 15) - info.blockMinX) * 12, mapSize);
+                    int pz = Math.floorMod(((cz << 4) + (i >> 4) - info.blockMinZ) * 12, mapSize);
+                    chunk[i] = ColumnStore.pack(1 + random.nextInt(200), random.nextInt(16), 64 + random.nextInt(32), img.getRGB(px, pz));
+                }
+                columns.put(cx, cz, chunk);
+                coverage.markRendered(cx, cz, version);
+            }
+        }
+
+        String[] names = new String[players];
+        String[] worlds = new String[players];
+        int[] ids = new int[players], xs = new int[players], ys = new int[players], zs = new int[players];
+        for (int i = 0; i < players; i++) {
+            names[i] = "Player" + i;
+            worlds[i] = world;
+            ids[i] = i;
+            xs[i] = random.nextInt(blocks) - blocks / 2;
+            ys[i] = 64 + random.nextInt(32);
+            zs[i] = random.nextInt(blocks) - blocks / 2;
+        }
+        PlayerFeed.PlayerSnapshot snapshot = new PlayerFeed.PlayerSnapshot(
+            names, worlds, ids, xs, ys, zs, 1, new PlayerFeed.Delta[0], System.currentTimeMillis());
+        this.feed = new PlayerFeed(2, 64) {
+            @Override
+            public PlayerSnapshot getSnapshot() {
+                return snapshot;
+            }
+        };
+        getMarkerIndex().syncPlayers(snapshot);
+        this.trails = new TrailRecorder(new File(dataFolder, "trails"), 1 << 16, 2, () -> snapshot, getLogger());
+        trails.sample();
+        this.heatmap = new ActivityHeatmap(new File(dataFolder, "heatmap"), 2, 7, () -> snapshot, getLogger());
+        for (int i = 0; i < 100; i++) heatmap.sample();
+
+        rateLimit.enabled = false;
+    }
+
+    @Override public File getMapFolder() { return mapFolder; }
+    @Override public Map<String, MapInfo> getRenderedMaps() { return maps; }
+    @Override public PlayerFeed getPlayerFeed() { return feed; }
+    @Override public int getMarkerUpdateSeconds() { return 2; }
+    @Override public int getStreamMaxSubscribers() { return 200; }
+    @Override public long getRenderCacheBytes() { return 32L << 20; }
+    @Override public RateLimiter.Settings getRateLimitSettings() { return rateLimit; }
+    @Override public TrailRecorder getTrailRecorder() { return trails; }
+    @Override public ActivityHeatmap getActivityHeatmap() { return heatmap; }
+    @Override public ColumnStore getColumnStore(String worldName) { return maps.containsKey(worldName) ? columns : null; }
+}
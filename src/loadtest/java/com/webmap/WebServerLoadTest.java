@@ -0,0 +1,205 @@
+package com.webmap;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Closed-loop load generator for WebServer
+ *
+ * Starts the real WebServer against a LoadTestPlugin data folder and keeps
+ * N clients busy on the configured endpoints, then prints throughput,
+ * p50/p99 latency per endpoint and the server side allocation rate.
+ *
+ *   gradle loadTest -PloadTestArgs="--concurrency=64 --duration=30"
+ *
+ * Options (defaults in brackets):
+ *   --concurrency [32]  parallel clients
+ *   --duration [20]     measured seconds
+ *   --warmup [5]        unmeasured seconds before that
+ *   --players [100]     players in the served snapshot
+ *   --map-size [4096]   width/height of the generated map PNG
+ *   --port [18123]      port for the server under test
+ *   --endpoints         comma separated paths [/,/map/world.png,/api/players,/api/maps]
+ *   --rate-limit        keep the rate limiter enabled (off by default)
+ */
+public class WebServerLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseArgs(args);
+        int concurrency = Integer.parseInt(opts.getOrDefault("concurrency", "32"));
+        int duration = Integer.parseInt(opts.getOrDefault("duration", "20"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+        int players = Integer.parseInt(opts.getOrDefault("players", "100"));
+        int mapSize = Integer.parseInt(opts.getOrDefault("map-size", "4096"));
+        int port = Integer.parseInt(opts.getOrDefault("port", "18123"));
+        String[] endpoints = opts.getOrDefault("endpoints", "/,/map/world.png,/api/players,/api/maps").split(",");
+
+        File dataFolder = Files.createTempDirectory("webmap-loadtest").toFile();
+        LoadTestPlugin plugin = new LoadTestPlugin(dataFolder, "world", mapSize, players);
+        plugin.getRateLimitSettings().enabled = opts.containsKey("rate-limit");
+
+        WebServer server = new WebServer(plugin, port);
+        server.start();
+        System.out.println("Server on :" + port + ", map " + mapSize + "x" + mapSize
+            + ", " + players + " players, " + concurrency + " clients, endpoints " + Arrays.toString(endpoints));
+
+        HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(Executors.newFixedThreadPool(4, named("loadtest-http")))
+            .build();
+
+        Stats[] stats = new Stats[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) stats[i] = new Stats(endpoints[i]);
+
+        long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(duration);
+        AtomicInteger next = new AtomicInteger();
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency, named("loadtest-client"));
+        for (int c = 0; c < concurrency; c++) {
+            clients.execute(() -> {
+                while (true) {
+                    long start = System.nanoTime();
+                    if (start >= end) return;
+                    int idx = Math.floorMod(next.getAndIncrement(), endpoints.length);
+                    HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + endpoints[idx]))
+                        .timeout(Duration.ofSeconds(30)).GET().build();
+                    int status;
+                    long bytes;
+                    try {
+                        HttpResponse<byte[]> resp = client.send(req, HttpResponse.BodyHandlers.ofByteArray());
+                        status = resp.statusCode();
+                        bytes = resp.body().length;
+                    } catch (Exception e) {
+                        status = -1;
+                        bytes = 0;
+                    }
+                    if (start >= warmupEnd) {
+                        stats[idx].record(System.nanoTime() - start, status, bytes);
+                    }
+                }
+            });
+        }
+
+        Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(warmupEnd - System.nanoTime())));
+        long allocBefore = serverAllocatedBytes();
+        long gcBefore = gcCount();
+        long measureStart = System.nanoTime();
+
+        clients.shutdown();
+        clients.awaitTermination(duration + 60, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        long allocated = serverAllocatedBytes() - allocBefore;
+        long gcs = gcCount() - gcBefore;
+
+        server.stop();
+
+        System.out.println();
+        System.out.printf("%-22s %9s %9s %9s %9s %9s %8s%n", "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "MB/s", "errors");
+        long total = 0;
+        for (Stats s : stats) {
+            total += s.count();
+            System.out.printf("%-22s %9d %9.1f %9.2f %9.2f %9.2f %8d%n",
+                s.endpoint, s.count(), s.count() / seconds, s.percentile(50), s.percentile(99),
+                s.bytes / seconds / (1 << 20), s.errors);
+        }
+        System.out.printf("%-22s %9d %9.1f%n", "total", total, total / seconds);
+        System.out.printf("Server allocation: %.1f MB/s (%.1f KB/request), %d GCs%n",
+            allocated / seconds / (1 << 20), total == 0 ? 0 : allocated / 1024.0 / total, gcs);
+        System.exit(0);
+    }
+
+    /**
+     * Bytes allocated by every thread that is not part of the load generator itself.
+     * Threads that die during the run are not counted, which is fine for pooled server threads.
+     */
+    private static long serverAllocatedBytes() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = mx.getAllThreadIds();
+        long[] allocated = mx.getThreadAllocatedBytes(ids);
+        ThreadInfo[] infos = mx.getThreadInfo(ids);
+        long sum = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] == null || allocated[i] < 0) continue;
+            String name = infos[i].getThreadName();
+            if (name.startsWith("loadtest-") || name.startsWith("HttpClient")) continue;
+            sum += allocated[i];
+        }
+        return sum;
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += Math.max(0, gc.getCollectionCount());
+        }
+        return n;
+    }
+
+    private static java.util.concurrent.ThreadFactory named(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--")) continue;
+            int eq = a.indexOf('=');
+            if (eq < 0) opts.put(a.substring(2), "true");
+            else opts.put(a.substring(2, eq), a.substring(eq + 1));
+        }
+        return opts;
+    }
+
+    private static class Stats {
+        final String endpoint;
+        private long[] latencies = new long[4096];
+        private int count;
+        long bytes;
+        long errors;
+
+        Stats(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        synchronized void record(long nanos, int status, long size) {
+            if (status != 200) {
+                errors++;
+                return;
+            }
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+            bytes += size;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized double percentile(int p) {
+            if (count == 0) return 0;
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int idx = Math.min(count - 1, (int) Math.ceil(p / 100.0 * count) - 1);
+            return sorted[Math.max(0, idx)] / 1e6;
+        }
+    }
+}
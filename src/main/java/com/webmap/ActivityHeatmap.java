@@ -0,0 +1,310 @@
+package com.webmap;
+
+import cn.nukkit.plugin.PluginLogger;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Where players spend their time, counted per chunk
+ * Every marker interval each online player adds one sample to the chunk it
+ * stands in. Counts decay with a configurable half-life and are saved to
+ * heatmap/<world>.heat every few minutes.
+ *
+ * The overlay is served as tiles of 32x32 chunks, one pixel per chunk. A tile
+ * gets a new version whenever one of its chunks changes and is only re-encoded
+ * when someone asks for it, so idle areas cost nothing.
+ */
+public class ActivityHeatmap {
+
+    public static final int TILE_CHUNKS = 32;
+
+    // Fixed point: one sample = 256, lets decay shave fractions off small counts
+    private static final int SAMPLE_WEIGHT = 256;
+    private static final int FILE_MAGIC = 0x574D4854; // "WMHT"
+    private static final long DECAY_MINUTES = 60;
+    private static final long FLUSH_MINUTES = 5;
+
+    private final File folder;
+    private final int intervalSeconds;
+    private final double decayFactor;
+    private final int saturation;
+    private final Supplier<PlayerFeed.PlayerSnapshot> source;
+    private final PluginLogger logger;
+
+    private final Map<String, WorldHeat> worlds = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    // Heatmap thread only. Seeded from the clock so tile URLs stay unique across restarts.
+    private long versionClock = System.currentTimeMillis();
+
+    private static class WorldHeat {
+        final LongIntMap counts;
+        final Map<Long, Tile> tiles = new HashMap<>();
+        boolean unsaved;
+
+        WorldHeat(LongIntMap counts) {
+            this.counts = counts;
+        }
+    }
+
+    private static class Tile {
+        long version;
+        long pngVersion = -1;
+        byte[] png;
+    }
+
+    /**
+     * @param halfLifeDays days until a chunk's heat halves, 0 disables decay
+     */
+    public ActivityHeatmap(File folder, int intervalSeconds, double halfLifeDays, Supplier<PlayerFeed.PlayerSnapshot> source,
+                           PluginLogger logger) {
+        this.folder = folder;
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+        this.decayFactor = halfLifeDays > 0 ? Math.pow(0.5, DECAY_MINUTES / (halfLifeDays * 24 * 60)) : 1;
+        // Full colour after one hour of presence
+        this.saturation = 3600 / this.intervalSeconds * SAMPLE_WEIGHT;
+        this.source = source;
+        this.logger = logger;
+    }
+
+    public void start() {
+        folder.mkdirs();
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".heat"));
+        if (files != null) {
+            for (File f : files) {
+                String world = f.getName().substring(0, f.getName().length() - ".heat".length());
+                try {
+                    worlds.put(world, load(f));
+                } catch (IOException e) {
+                    logger.warning("Heatmap file unreadable, starting " + world + " empty: " + e.getMessage());
+                }
+            }
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WebMap-Heatmap");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleAtFixedRate(guard("sample", this::sample), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        if (decayFactor < 1) {
+            executor.scheduleAtFixedRate(guard("decay", this::decay), DECAY_MINUTES, DECAY_MINUTES, TimeUnit.MINUTES);
+        }
+        executor.scheduleAtFixedRate(guard("save", this::flush), FLUSH_MINUTES, FLUSH_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        guard("save", this::flush).run();
+    }
+
+    /**
+     * Keep the schedule alive, and log each new error of a task once
+     */
+    private Runnable guard(String task, Runnable r) {
+        String[] lastError = new String[1];
+        return () -> {
+            try {
+                r.run();
+                lastError[0] = null;
+            } catch (Exception e) {
+                String error = String.valueOf(e);
+                if (!error.equals(lastError[0])) {
+                    lastError[0] = error;
+                    logger.warning("Heatmap " + task + " failed: " + error);
+                }
+            }
+        };
+    }
+
+    /**
+     * One sample per online player, standing still counts too
+     */
+    void sample() {
+        PlayerFeed.PlayerSnapshot snapshot = source.get();
+        for (int i = 0; i < snapshot.size(); i++) {
+            WorldHeat heat = worlds.computeIfAbsent(snapshot.world(i), w -> new WorldHeat(new LongIntMap(1024)));
+            int cx = snapshot.x(i) >> 4, cz = snapshot.z(i) >> 4;
+            synchronized (heat) {
+                heat.counts.add(chunkKey(cx, cz), SAMPLE_WEIGHT);
+                heat.tiles.computeIfAbsent(chunkKey(cx >> 5, cz >> 5), k -> new Tile()).version = ++versionClock;
+                heat.unsaved = true;
+            }
+        }
+    }
+
+    void decay() {
+        for (Map.Entry<String, WorldHeat> entry : worlds.entrySet()) {
+            WorldHeat heat = entry.getValue();
+            WorldHeat decayed;
+            synchronized (heat) {
+                if (heat.counts.size() == 0) continue;
+                decayed = new WorldHeat(new LongIntMap(heat.counts.size()));
+                heat.counts.forEach((key, value) -> {
+                    int next = (int) (value * decayFactor);
+                    if (next == value) next--; // Always make progress towards zero
+                    if (next > 0) decayed.counts.put(key, next);
+                });
+                // Every remaining tile changed, empty ones disappear
+                long version = ++versionClock;
+                decayed.counts.forEach((key, value) ->
+                    decayed.tiles.computeIfAbsent(chunkKey((int) (key >> 32) >> 5, (int) key >> 5), k -> new Tile()).version = version);
+                decayed.unsaved = true;
+            }
+            worlds.put(entry.getKey(), decayed);
+        }
+    }
+
+    void flush() {
+        IOException failed = null;
+        for (Map.Entry<String, WorldHeat> entry : worlds.entrySet()) {
+            WorldHeat heat = entry.getValue();
+            ByteArrayOutputStream bytes;
+            synchronized (heat) {
+                if (!heat.unsaved) continue;
+                bytes = new ByteArrayOutputStream(8 + heat.counts.size() * 12);
+                DataOutputStream out = new DataOutputStream(bytes);
+                try {
+                    out.writeInt(FILE_MAGIC);
+                    out.writeInt(heat.counts.size());
+                    heat.counts.forEach((key, value) -> {
+                        try {
+                            out.writeLong(key);
+                            out.writeInt(value);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (IOException e) {
+                    continue;
+                }
+                heat.unsaved = false;
+            }
+            File target = new File(folder, entry.getKey() + ".heat");
+            File tmp = new File(folder, entry.getKey() + ".heat.tmp");
+            try {
+                Files.write(tmp.toPath(), bytes.toByteArray());
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                synchronized (heat) {
+                    heat.unsaved = true;
+                }
+                failed = e;
+            }
+        }
+        // The other worlds are saved, report the failure so the guard logs it
+        if (failed != null) throw new UncheckedIOException(failed);
+    }
+
+    private WorldHeat load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) throw new IOException("Not a heatmap file");
+            int n = in.readInt();
+            WorldHeat heat = new WorldHeat(new LongIntMap(n));
+            for (int i = 0; i < n; i++) {
+                long key = in.readLong();
+                int value = in.readInt();
+                heat.counts.put(key, value);
+                heat.tiles.computeIfAbsent(chunkKey((int) (key >> 32) >> 5, (int) key >> 5), k -> new Tile()).version = versionClock;
+            }
+            return heat;
+        }
+    }
+
+    /**
+     * Non-empty tiles of a world with their versions: {"tileChunks":32,"tiles":[[tx,tz,version],...]}
+     */
+    public String tileIndex(String world) {
+        StringBuilder json = new StringBuilder("{\"tileChunks\":").append(TILE_CHUNKS).append(",\"tiles\":[");
+        WorldHeat heat = worlds.get(world);
+        if (heat != null) {
+            synchronized (heat) {
+                boolean first = true;
+                for (Map.Entry<Long, Tile> e : heat.tiles.entrySet()) {
+                    if (!first) json.append(",");
+                    json.append("[").append((int) (e.getKey() >> 32)).append(",").append(e.getKey().intValue())
+                        .append(",").append(e.getValue().version).append("]");
+                    first = false;
+                }
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * PNG of one tile, re-encoded only if a chunk in it changed. Null if the tile is empty.
+     */
+    public byte[] tilePng(String world, int tx, int tz) throws IOException {
+        WorldHeat heat = worlds.get(world);
+        if (heat == null) return null;
+
+        long tileKey = chunkKey(tx, tz);
+        int[] argb = new int[TILE_CHUNKS * TILE_CHUNKS];
+        Tile tile;
+        long version;
+        synchronized (heat) {
+            tile = heat.tiles.get(tileKey);
+            if (tile == null) return null;
+            if (tile.pngVersion == tile.version) return tile.png;
+            version = tile.version;
+            for (int dz = 0; dz < TILE_CHUNKS; dz++) {
+                for (int dx = 0; dx < TILE_CHUNKS; dx++) {
+                    int count = heat.counts.get(chunkKey(tx * TILE_CHUNKS + dx, tz * TILE_CHUNKS + dz));
+                    argb[dz * TILE_CHUNKS + dx] = color(count);
+                }
+            }
+        }
+
+        // Encode outside the lock, sampling keeps going meanwhile
+        BufferedImage img = new BufferedImage(TILE_CHUNKS, TILE_CHUNKS, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(0, 0, TILE_CHUNKS, TILE_CHUNKS, argb, 0, TILE_CHUNKS);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(img, "PNG", bytes);
+        byte[] png = bytes.toByteArray();
+
+        synchronized (heat) {
+            if (tile.pngVersion < version) {
+                tile.png = png;
+                tile.pngVersion = version;
+            }
+        }
+        return png;
+    }
+
+    public List<String> getWorlds() {
+        return new ArrayList<>(worlds.keySet());
+    }
+
+    /**
+     * Blue (little) to red (an hour or more), log scale
+     */
+    private int color(int count) {
+        if (count <= 0) return 0;
+        float t = (float) Math.min(1.0, Math.log1p(count) / Math.log1p(saturation));
+        int rgb = Color.HSBtoRGB(0.66f * (1 - t), 1f, 1f) & 0xFFFFFF;
+        int alpha = (int) (70 + 170 * t);
+        return (alpha << 24) | rgb;
+    }
+
+    private static long chunkKey(int cx, int cz) {
+        return (((long) cx) << 32) | (cz & 0xFFFFFFFFL);
+    }
+}
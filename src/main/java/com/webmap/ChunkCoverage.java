@@ -0,0 +1,280 @@
+package com.webmap;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Which chunks of a world exist and which are on the rendered map
+ * Chunks are grouped in regions of 32x32; each region holds two 1024 bit sets
+ * (exists, rendered) and, once something in it was rendered, the render
+ * version of every chunk. A million chunks cost about 4 MB instead of a
+ * HashSet of boxed keys rebuilt on every render.
+ *
+ * Render versions are the start time of the render in epoch seconds, strictly
+ * increasing per world. Saved to maps/<world>.coverage (big endian):
+ * <pre>
+ *   header  magic, version, lastRender, regionCount                      (4 ints)
+ *   region  rx, rz, exists(16 longs), rendered(16 longs), hasVersions(byte)
+ *           [1024 ints, only if hasVersions]
+ * </pre>
+ */
+public class ChunkCoverage {
+
+    public static final int REGION_SHIFT = 5;
+    public static final int REGION_CHUNKS = 1 << REGION_SHIFT;
+
+    private static final int WORDS = REGION_CHUNKS * REGION_CHUNKS / 64;
+    private static final int FILE_MAGIC = 0x574D4356; // "WMCV"
+    private static final int FILE_VERSION = 1;
+
+    public interface ChunkVisitor {
+        void visit(int cx, int cz);
+    }
+
+    private static class Region {
+        final long[] exists = new long[WORDS];
+        final long[] rendered = new long[WORDS];
+        int[] versions;
+        int existCount;
+
+        boolean isEmpty() {
+            return existCount == 0;
+        }
+    }
+
+    private final Map<Long, Region> regions = new HashMap<>();
+    private int chunkCount;
+    private int renderedCount;
+    private int lastRender;
+    private boolean unsaved;
+
+    /**
+     * Record that a chunk exists
+     *
+     * @return true if it was not known before
+     */
+    public synchronized boolean markExists(int cx, int cz) {
+        Region r = regions.computeIfAbsent(regionKey(cx >> REGION_SHIFT, cz >> REGION_SHIFT), k -> new Region());
+        int bit = bit(cx, cz);
+        if (test(r.exists, bit)) return false;
+        r.exists[bit >> 6] |= 1L << bit;
+        r.existCount++;
+        chunkCount++;
+        unsaved = true;
+        return true;
+    }
+
+    /**
+     * Drop a chunk that turned out not to exist (deleted or never generated)
+     */
+    public synchronized void forget(int cx, int cz) {
+        long key = regionKey(cx >> REGION_SHIFT, cz >> REGION_SHIFT);
+        Region r = regions.get(key);
+        int bit = bit(cx, cz);
+        if (r == null || !test(r.exists, bit)) return;
+        r.exists[bit >> 6] &= ~(1L << bit);
+        if (test(r.rendered, bit)) {
+            r.rendered[bit >> 6] &= ~(1L << bit);
+            renderedCount--;
+        }
+        if (r.versions != null) r.versions[bit] = 0;
+        r.existCount--;
+        chunkCount--;
+        if (r.isEmpty()) regions.remove(key);
+        unsaved = true;
+    }
+
+    public synchronized boolean exists(int cx, int cz) {
+        Region r = regions.get(regionKey(cx >> REGION_SHIFT, cz >> REGION_SHIFT));
+        return r != null && test(r.exists, bit(cx, cz));
+    }
+
+    public synchronized boolean isRendered(int cx, int cz) {
+        Region r = regions.get(regionKey(cx >> REGION_SHIFT, cz >> REGION_SHIFT));
+        return r != null && test(r.rendered, bit(cx, cz));
+    }
+
+    /**
+     * @return render version of a chunk, 0 if it was never rendered
+     */
+    public synchronized int version(int cx, int cz) {
+        Region r = regions.get(regionKey(cx >> REGION_SHIFT, cz >> REGION_SHIFT));
+        return r == null || r.versions == null ? 0 : r.versions[bit(cx, cz)];
+    }
+
+    /**
+     * Version for a render starting now
+     */
+    public synchronized int beginRender() {
+        lastRender = Math.max(lastRender + 1, (int) (System.currentTimeMillis() / 1000));
+        unsaved = true;
+        return lastRender;
+    }
+
+    public synchronized int getLastRender() {
+        return lastRender;
+    }
+
+    /**
+     * Record that a chunk was drawn by the render with the given version (marks it as existing too)
+     */
+    public synchronized void markRendered(int cx, int cz, int version) {
+        markExists(cx, cz);
+        Region r = regions.get(regionKey(cx >> REGION_SHIFT, cz >> REGION_SHIFT));
+        int bit = bit(cx, cz);
+        if (!test(r.rendered, bit)) {
+            r.rendered[bit >> 6] |= 1L << bit;
+            renderedCount++;
+        }
+        if (r.versions == null) r.versions = new int[REGION_CHUNKS * REGION_CHUNKS];
+        r.versions[bit] = version;
+        unsaved = true;
+    }
+
+    public synchronized int size() {
+        return chunkCount;
+    }
+
+    public synchronized int renderedSize() {
+        return renderedCount;
+    }
+
+    /**
+     * Snapshot of all existing chunk keys ((cx << 32) | cz), grouped by region
+     */
+    public synchronized long[] keys() {
+        long[] keys = new long[chunkCount];
+        int n = 0;
+        for (Map.Entry<Long, Region> e : regions.entrySet()) {
+            int baseX = (int) (e.getKey() >> 32) << REGION_SHIFT;
+            int baseZ = e.getKey().intValue() << REGION_SHIFT;
+            long[] exists = e.getValue().exists;
+            for (int w = 0; w < WORDS; w++) {
+                for (long bits = exists[w]; bits != 0; bits &= bits - 1) {
+                    int bit = (w << 6) | Long.numberOfTrailingZeros(bits);
+                    keys[n++] = chunkKey(baseX + (bit & (REGION_CHUNKS - 1)), baseZ + (bit >> REGION_SHIFT));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Coverage as JSON: {"regionChunks":32,"chunks":n,"rendered":n,"lastRender":v,
+     * "regions":[[rx,rz,"exists","rendered"],...]} with base64 bit sets,
+     * bit (z & 31) * 32 + (x & 31), least significant bit first
+     */
+    public synchronized void appendJson(StringBuilder json) {
+        json.append("\"regionChunks\":").append(REGION_CHUNKS)
+            .append(",\"chunks\":").append(chunkCount)
+            .append(",\"rendered\":").append(renderedCount)
+            .append(",\"lastRender\":").append(lastRender)
+            .append(",\"regions\":[");
+        boolean first = true;
+        for (Map.Entry<Long, Region> e : regions.entrySet()) {
+            if (!first) json.append(",");
+            json.append("[").append((int) (e.getKey() >> 32)).append(",").append(e.getKey().intValue())
+                .append(",\"").append(encodeBits(e.getValue().exists))
+                .append("\",\"").append(encodeBits(e.getValue().rendered)).append("\"]");
+            first = false;
+        }
+        json.append("]");
+    }
+
+    // ============ Persistence ============
+
+    public static ChunkCoverage load(File file) throws IOException {
+        ChunkCoverage coverage = new ChunkCoverage();
+        if (!file.exists()) return coverage;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Not a coverage file: " + file.getName());
+            }
+            coverage.lastRender = in.readInt();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                long key = regionKey(in.readInt(), in.readInt());
+                Region r = new Region();
+                for (int w = 0; w < WORDS; w++) r.exists[w] = in.readLong();
+                for (int w = 0; w < WORDS; w++) r.rendered[w] = in.readLong();
+                if (in.readBoolean()) {
+                    r.versions = new int[REGION_CHUNKS * REGION_CHUNKS];
+                    for (int b = 0; b < r.versions.length; b++) r.versions[b] = in.readInt();
+                }
+                for (int w = 0; w < WORDS; w++) {
+                    r.rendered[w] &= r.exists[w];
+                    r.existCount += Long.bitCount(r.exists[w]);
+                    coverage.renderedCount += Long.bitCount(r.rendered[w]);
+                }
+                if (r.isEmpty()) continue;
+                coverage.chunkCount += r.existCount;
+                coverage.regions.put(key, r);
+            }
+        }
+        return coverage;
+    }
+
+    /**
+     * Write to a temporary file and move it into place. Does nothing if unchanged since the last save.
+     */
+    public void save(File file) throws IOException {
+        ByteArrayOutputStream bytes;
+        synchronized (this) {
+            if (!unsaved) return;
+            bytes = new ByteArrayOutputStream(16 + regions.size() * 300);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(lastRender);
+            out.writeInt(regions.size());
+            for (Map.Entry<Long, Region> e : regions.entrySet()) {
+                Region r = e.getValue();
+                out.writeInt((int) (e.getKey() >> 32));
+                out.writeInt(e.getKey().intValue());
+                for (long w : r.exists) out.writeLong(w);
+                for (long w : r.rendered) out.writeLong(w);
+                out.writeBoolean(r.versions != null);
+                if (r.versions != null) {
+                    for (int v : r.versions) out.writeInt(v);
+                }
+            }
+            unsaved = false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), bytes.toByteArray());
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            synchronized (this) {
+                unsaved = true;
+            }
+            throw e;
+        }
+    }
+
+    private static String encodeBits(long[] words) {
+        byte[] b = new byte[words.length * 8];
+        for (int i = 0; i < b.length; i++) b[i] = (byte) (words[i >> 3] >>> ((i & 7) * 8));
+        return Base64.getEncoder().encodeToString(b);
+    }
+
+    private static boolean test(long[] words, int bit) {
+        return (words[bit >> 6] & (1L << bit)) != 0;
+    }
+
+    private static int bit(int cx, int cz) {
+        return ((cz & (REGION_CHUNKS - 1)) << REGION_SHIFT) | (cx & (REGION_CHUNKS - 1));
+    }
+
+    private static long regionKey(int rx, int rz) {
+        return (((long) rx) << 32) | (rz & 0xFFFFFFFFL);
+    }
+
+    private static long chunkKey(int cx, int cz) {
+        return (((long) cx) << 32) | (cz & 0xFFFFFFFFL);
+    }
+}
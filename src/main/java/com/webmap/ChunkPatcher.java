@@ -0,0 +1,254 @@
+package com.webmap;
+
+import cn.nukkit.level.Level;
+import cn.nukkit.level.format.FullChunk;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the map fresh from chunks players load anyway
+ * When a chunk is loaded or about to be unloaded its columns are computed on
+ * the main thread (the chunk is in memory, so no disk reads), using the same
+ * rules as a full render. A background thread periodically writes the
+ * collected chunks into the column data, the coverage and the map image.
+ * While the patcher runs, the decoded map stays in memory between patches,
+ * so a patch only draws its chunks and encodes the result; it is held softly
+ * and decoded again if the memory was needed elsewhere. Without a running
+ * patcher (early publishes during renders only) nothing is kept.
+ *
+ * Chunks outside the last render's bounds are only recorded as existing,
+ * the next full render picks them up.
+ */
+public class ChunkPatcher {
+
+    private static final Object PATCH_LOCK = new Object();
+
+    // Decoded map per world and the published MapInfo it belongs to, only while a patcher runs
+    private static final Map<String, ResidentImage> images = new ConcurrentHashMap<>();
+    private static volatile boolean keepImages;
+
+    private static class ResidentImage {
+        final WebMapPlugin.MapInfo info;
+        final SoftReference<BufferedImage> image;
+
+        ResidentImage(WebMapPlugin.MapInfo info, BufferedImage image) {
+            this.info = info;
+            this.image = new SoftReference<>(image);
+        }
+    }
+
+    private final WebMapPlugin plugin;
+    private final MapRenderer renderer;
+    private final int minAgeSeconds;
+    private final int flushSeconds;
+
+    // Latest columns per chunk, a chunk seen twice before a flush is drawn once
+    private final Map<String, Map<Long, long[]>> pending = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    private volatile int patchedChunks;
+
+    public ChunkPatcher(WebMapPlugin plugin, MapRenderer renderer, int minAgeMinutes, int flushSeconds) {
+        this.plugin = plugin;
+        this.renderer = renderer;
+        this.minAgeSeconds = Math.max(0, minAgeMinutes) * 60;
+        this.flushSeconds = Math.max(1, flushSeconds);
+    }
+
+    public void start() {
+        keepImages = true;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WebMap-Patch");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Exception e) {
+                plugin.getLogger().warning("Chunk patch failed: " + e.getMessage());
+            }
+        }, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        keepImages = false;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        images.clear();
+    }
+
+    /**
+     * Main thread: take the columns of a loaded chunk unless it was rendered recently
+     */
+    public void offer(Level level, FullChunk chunk) {
+        if (chunk == null || !chunk.isPopulated()) return;
+        // Optional work, the next full render covers it
+        LoadGovernor governor = plugin.getLoadGovernor();
+        if (governor != null && governor.isBehind()) return;
+        String world = level.getName();
+        if (!plugin.getRenderedMaps().containsKey(world) || plugin.isRendering(world)) return;
+
+        int cx = chunk.getX(), cz = chunk.getZ();
+        ChunkCoverage coverage = plugin.getCoverage(world);
+        int age = (int) (System.currentTimeMillis() / 1000) - coverage.version(cx, cz);
+        if (coverage.isRendered(cx, cz) && age < minAgeSeconds) return;
+
+        long[] columns = renderer.scanChunk(chunk);
+        pending.computeIfAbsent(world, w -> new ConcurrentHashMap<>()).put(chunkKey(cx, cz), columns);
+    }
+
+    public int getPatchedChunks() {
+        return patchedChunks;
+    }
+
+    public int getPendingChunks() {
+        int n = 0;
+        for (Map<Long, long[]> chunks : pending.values()) n += chunks.size();
+        return n;
+    }
+
+    void flush() throws IOException {
+        for (Map.Entry<String, Map<Long, long[]>> entry : pending.entrySet()) {
+            Map<Long, long[]> queued = entry.getValue();
+            if (queued.isEmpty()) continue;
+            Map<Long, long[]> batch = new HashMap<>();
+            for (Long key : queued.keySet()) {
+                long[] columns = queued.remove(key);
+                if (columns != null) batch.put(key, columns);
+            }
+            patch(entry.getKey(), batch);
+        }
+    }
+
+    private void patch(String world, Map<Long, long[]> batch) throws IOException {
+        patchedChunks += apply(plugin, renderer, world, batch);
+    }
+
+    /**
+     * Draw chunk columns into the published map of a world (also used by renders to show
+     * the area around players before the whole pass is done)
+     *
+     * @return number of chunks drawn into the image
+     */
+    static int apply(WebMapPlugin plugin, MapRenderer renderer, String world, Map<Long, long[]> batch) throws IOException {
+        // Read, draw, write back: two patches at once would lose one of them
+        synchronized (PATCH_LOCK) {
+            return applyLocked(plugin, renderer, world, batch);
+        }
+    }
+
+    /**
+     * Keep a freshly published render as the image later patches draw into, so they need not decode it
+     */
+    static void adopt(String world, WebMapPlugin.MapInfo info, BufferedImage image) {
+        keep(world, info, image);
+    }
+
+    private static int applyLocked(WebMapPlugin plugin, MapRenderer renderer, String world, Map<Long, long[]> batch) throws IOException {
+        WebMapPlugin.MapInfo info = plugin.getRenderedMaps().get(world);
+        if (info == null || info.pixelsPerBlock <= 0) return 0;
+        ChunkCoverage coverage = plugin.getCoverage(world);
+
+        Map<Long, long[]> onMap = new HashMap<>();
+        for (Map.Entry<Long, long[]> e : batch.entrySet()) {
+            int cx = (int) (e.getKey() >> 32), cz = e.getKey().intValue();
+            if ((cx + 1) * 16 <= info.blockMinX || cx * 16 >= info.blockMaxX
+                    || (cz + 1) * 16 <= info.blockMinZ || cz * 16 >= info.blockMaxZ) {
+                coverage.markExists(cx, cz);
+            } else {
+                onMap.put(e.getKey(), e.getValue());
+            }
+        }
+        if (onMap.isEmpty()) {
+            plugin.saveCoverage(world);
+            return 0;
+        }
+        int version = coverage.beginRender();
+
+        ColumnStore store = plugin.getColumnStore(world);
+        for (Map.Entry<Long, long[]> e : onMap.entrySet()) {
+            int cx = (int) (e.getKey() >> 32), cz = e.getKey().intValue();
+            if (store == null || !store.contains(cx, cz)) continue;
+            try {
+                store.put(cx, cz, e.getValue());
+            } catch (ClosedChannelException ignored) {
+                // A full render replaced the file, it has fresher data anyway
+                store = null;
+            }
+        }
+
+        // Redraw the chunks into the kept image, write a copy and swap it in
+        File mapFile = new File(plugin.getMapFolder(), world + ".png");
+        BufferedImage image = residentImage(world, info, mapFile);
+        if (image == null) return 0;
+        for (Map.Entry<Long, long[]> e : onMap.entrySet()) {
+            renderer.paintChunk(image, e.getValue(), (int) (e.getKey() >> 32), e.getKey().intValue(), info);
+        }
+        File tmp = new File(plugin.getMapFolder(), world + ".png.tmp");
+        ImageIO.write(image, "PNG", tmp);
+
+        synchronized (plugin.getMapLock()) {
+            if (plugin.getRenderedMaps().get(world) != info) {
+                // Re-rendered meanwhile, the patch is based on the old image
+                tmp.delete();
+                return 0;
+            }
+            Files.move(tmp.toPath(), mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            WebMapPlugin.MapInfo patched = info.copy();
+            patched.lastUpdate = System.currentTimeMillis();
+            plugin.getRenderedMaps().put(world, patched);
+            keep(world, patched, image);
+        }
+        for (Long key : onMap.keySet()) {
+            coverage.markRendered((int) (key >> 32), key.intValue(), version);
+        }
+        plugin.saveCoverage(world);
+        return onMap.size();
+    }
+
+    /**
+     * The decoded map of the published render, read from disk only the first time or after it was dropped
+     */
+    private static BufferedImage residentImage(String world, WebMapPlugin.MapInfo info, File mapFile) throws IOException {
+        ResidentImage resident = images.get(world);
+        BufferedImage image = resident != null && resident.info == info ? resident.image.get() : null;
+        if (image == null) {
+            image = ImageIO.read(mapFile);
+            if (image == null) return null;
+            keep(world, info, image);
+        }
+        return image;
+    }
+
+    private static void keep(String world, WebMapPlugin.MapInfo info, BufferedImage image) {
+        if (keepImages) {
+            images.put(world, new ResidentImage(info, image));
+        } else {
+            images.remove(world);
+        }
+    }
+
+    private static long chunkKey(int cx, int cz) {
+        return (((long) cx) << 32) | (cz & 0xFFFFFFFFL);
+    }
+}
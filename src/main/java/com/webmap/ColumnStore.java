@@ -0,0 +1,168 @@
+package com.webmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Per-column render data for one world, persisted next to the map image
+ * Every rendered chunk gets a slot of 256 packed columns (top block id/data,
+ * surface height and final render colour). Lookups are one index read plus
+ * one 8 byte positional read, so HTTP threads never need to load chunks.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header  magic, version, minCX, minCZ, chunksX, chunksZ, slotCount, 0   (8 ints)
+ *   index   chunksX * chunksZ ints, 1-based slot number (0 = not rendered)
+ *   slots   slotCount * 256 longs, column index = (z << 4) | x
+ * </pre>
+ */
+public class ColumnStore {
+
+    private static final int MAGIC = 0x574D434C; // "WMCL"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int SLOT_BYTES = 256 * 8;
+
+    // Keep the in-memory index below 64 MB
+    public static final long MAX_CHUNKS = 16L * 1024 * 1024;
+
+    public final int minCX, minCZ, chunksX, chunksZ;
+    private final int[] index;
+    private int slotCount;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private ColumnStore(RandomAccessFile raf, int minCX, int minCZ, int chunksX, int chunksZ, int[] index, int slotCount) {
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.minCX = minCX;
+        this.minCZ = minCZ;
+        this.chunksX = chunksX;
+        this.chunksZ = chunksZ;
+        this.index = index;
+        this.slotCount = slotCount;
+    }
+
+    /**
+     * Create an empty store covering the given chunk rectangle, replacing any existing file
+     */
+    public static ColumnStore create(File file, int minCX, int minCZ, int chunksX, int chunksZ) throws IOException {
+        if ((long) chunksX * chunksZ > MAX_CHUNKS) {
+            throw new IOException("Too many chunks for column store: " + chunksX + "x" + chunksZ);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(minCX).putInt(minCZ)
+              .putInt(chunksX).putInt(chunksZ).putInt(0).putInt(0).flip();
+        raf.getChannel().write(header, 0);
+        raf.setLength(HEADER_BYTES + (long) chunksX * chunksZ * 4);
+        return new ColumnStore(raf, minCX, minCZ, chunksX, chunksZ, new int[chunksX * chunksZ], 0);
+    }
+
+    public static ColumnStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            ch.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a column store: " + file.getName());
+            }
+            int minCX = header.getInt(), minCZ = header.getInt();
+            int chunksX = header.getInt(), chunksZ = header.getInt();
+            int slotCount = header.getInt();
+            if (chunksX < 0 || chunksZ < 0 || (long) chunksX * chunksZ > MAX_CHUNKS) {
+                throw new IOException("Corrupt column store: " + file.getName());
+            }
+
+            ByteBuffer idx = ByteBuffer.allocate(chunksX * chunksZ * 4);
+            ch.read(idx, HEADER_BYTES);
+            idx.flip();
+            int[] index = new int[chunksX * chunksZ];
+            idx.asIntBuffer().get(index, 0, Math.min(index.length, idx.remaining() / 4));
+            return new ColumnStore(raf, minCX, minCZ, chunksX, chunksZ, index, slotCount);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public boolean contains(int cx, int cz) {
+        int ix = cx - minCX, iz = cz - minCZ;
+        return ix >= 0 && iz >= 0 && ix < chunksX && iz < chunksZ;
+    }
+
+    public boolean hasChunk(int cx, int cz) {
+        return contains(cx, cz) && index[(cz - minCZ) * chunksX + (cx - minCX)] != 0;
+    }
+
+    /**
+     * Store all 256 columns of a chunk. Overwrites the previous slot if there is one.
+     */
+    public synchronized void put(int cx, int cz, long[] columns) throws IOException {
+        if (!contains(cx, cz)) return;
+        int i = (cz - minCZ) * chunksX + (cx - minCX);
+        int slot = index[i];
+        boolean fresh = slot == 0;
+        if (fresh) slot = ++slotCount;
+
+        ByteBuffer buf = ByteBuffer.allocate(SLOT_BYTES);
+        buf.asLongBuffer().put(columns, 0, 256);
+        channel.write(buf, slotOffset(slot));
+
+        if (fresh) {
+            ByteBuffer entry = ByteBuffer.allocate(4);
+            entry.putInt(0, slot);
+            channel.write(entry, HEADER_BYTES + (long) i * 4);
+            ByteBuffer count = ByteBuffer.allocate(4);
+            count.putInt(0, slotCount);
+            channel.write(count, 24);
+            index[i] = slot;
+        }
+    }
+
+    /**
+     * @return packed column at a world block position, or -1 if that chunk was never rendered
+     */
+    public long get(int x, int z) throws IOException {
+        int cx = x >> 4, cz = z >> 4;
+        if (!contains(cx, cz)) return -1;
+        int slot = index[(cz - minCZ) * chunksX + (cx - minCX)];
+        if (slot == 0) return -1;
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        long pos = slotOffset(slot) + (long) (((z & 15) << 4) | (x & 15)) * 8;
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) return -1;
+        }
+        return buf.getLong(0);
+    }
+
+    public void close() {
+        try {
+            raf.close();
+        } catch (IOException ignored) {}
+    }
+
+    private long slotOffset(int slot) {
+        return HEADER_BYTES + (long) chunksX * chunksZ * 4 + (long) (slot - 1) * SLOT_BYTES;
+    }
+
+    // ============ Packed column: id(16) data(8) height(16) rgb(24) ============
+
+    public static long pack(int blockId, int blockData, int height, int rgb) {
+        return ((long) (blockId & 0xFFFF) << 48)
+             | ((long) (blockData & 0xFF) << 40)
+             | ((long) (height & 0xFFFF) << 24)
+             | (rgb & 0xFFFFFFL);
+    }
+
+    public static int blockId(long column) { return (int) (column >>> 48) & 0xFFFF; }
+    public static int blockData(long column) { return (int) (column >>> 40) & 0xFF; }
+    public static int height(long column) { return (short) (column >>> 24); }
+    public static int rgb(long column) { return (int) (column & 0xFFFFFF); }
+}
@@ -4,12 +4,12 @@ import cn.nukkit.Player;
 import cn.nukkit.Server;
 import cn.nukkit.block.Block;
 import cn.nukkit.blockentity.BlockEntity;
-import cn.nukkit.blockentity.BlockEntityItemFrame;
 import cn.nukkit.item.ItemMap;
 import cn.nukkit.level.Level;
 import cn.nukkit.level.format.FullChunk;
 import cn.nukkit.math.BlockFace;
 import cn.nukkit.math.Vector3;
+import cn.nukkit.nbt.NBTIO;
 import cn.nukkit.nbt.tag.CompoundTag;
 import cn.nukkit.scheduler.AsyncTask;
 import cn.nukkit.scheduler.Task;
@@ -19,6 +19,7 @@ import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -36,21 +37,46 @@ public class InGameMapWall {
     private Map<String, WallInfo> physicalWalls = new ConcurrentHashMap<>();
     private long nextMapId = BASE_MAP_ID;
     
-    // Cached base images
-    private Map<String, BufferedImage> cachedBaseImages = new ConcurrentHashMap<>();
-    private Map<String, Long> cacheTimestamps = new ConcurrentHashMap<>();
+    // Base pieces and last drawn markers per wall
+    private Map<String, WallState> wallStates = new ConcurrentHashMap<>();
+    // Marker styles with their pre-rendered sprites, by wall size in pixels
+    private Map<Integer, MarkerStyle> markerStyles = new ConcurrentHashMap<>();
     private static final long CACHE_DURATION = 600000; // 10 minutes
+    // Changes larger than this (pixels of 128x128) resend the whole piece
+    private static final int MAX_PARTIAL_AREA = 128 * 128 / 2;
     
     // Async control
     private volatile boolean isUpdating = false;
     
+    // Walls whose frames are still being placed, by world (main thread)
+    private final Map<String, WallBuild> builds = new HashMap<>();
+    
+    private final MapSendQueue sendQueue;
+    // What each map id currently shows, rebuilt from base pieces when dropped
+    private final MapPieceStore pieceStore;
+    // Dropped pieces being rebuilt, with the players waiting for them (main thread)
+    private final Map<Long, List<Player>> rebuilding = new HashMap<>();
+    
+    // Scaled base pieces of all walls, null if the file cannot be opened
+    private WallPieceFile pieceFile;
+    
     // Config file for persistence
     private Config wallsConfig;
     
     public InGameMapWall(WebMapPlugin plugin) {
         this.plugin = plugin;
+        this.pieceStore = new MapPieceStore(plugin.getWallPieceCacheMb() * 1024L * 1024L);
+        this.sendQueue = new MapSendQueue(plugin, plugin.getWallBytesPerSecond(), this::getPiece);
         this.wallsConfig = new Config(new File(plugin.getDataFolder(), "walls.yml"), Config.YAML);
         loadWalls();
+        
+        try {
+            pieceFile = WallPieceFile.open(new File(plugin.getMapFolder(), "walls.pieces"));
+            pieceFile.retain(liveMapIds());
+        } catch (IOException e) {
+            plugin.getLogger().warning("[InGameMap] Wall piece file unavailable, walls load from the map image: " + e.getMessage());
+            pieceFile = null;
+        }
     }
     
     /**
@@ -80,6 +106,7 @@ public class InGameMapWall {
                 wall.baseZ = wallsConfig.getInt(prefix + "baseZ");
                 wall.imagePath = wallsConfig.getString(prefix + "imagePath");
                 wall.facing = BlockFace.valueOf(wallsConfig.getString(prefix + "facing", "SOUTH"));
+                wall.viewRadius = wallsConfig.getInt(prefix + "viewRadius", plugin.getWallViewRadius());
                 
                 // Load mapIds
                 wall.mapIds = new long[wall.size][wall.size];
@@ -92,6 +119,7 @@ public class InGameMapWall {
                 }
                 
                 physicalWalls.put(wallKey, wall);
+                plugin.getMarkerIndex().put(toMarker(wall));
                 plugin.getLogger().info("[InGameMap] Loaded wall: " + wallKey + " (" + wall.size + "x" + wall.size + ")");
                 
             } catch (Exception e) {
@@ -125,6 +153,7 @@ public class InGameMapWall {
             wallsConfig.set(prefix + "baseZ", wall.baseZ);
             wallsConfig.set(prefix + "imagePath", wall.imagePath);
             wallsConfig.set(prefix + "facing", wall.facing.name());
+            wallsConfig.set(prefix + "viewRadius", wall.viewRadius);
             
             // Save mapIds as list
             List<String> mapIdList = new ArrayList<>();
@@ -140,7 +169,8 @@ public class InGameMapWall {
     }
     
     /**
-     * Refresh wall images after loading (call after map render)
+     * Refresh wall images after loading (call at startup and after map render)
+     * Walls that are already shown are compared with the new image on the next update.
      */
     public void refreshLoadedWalls() {
         if (physicalWalls.isEmpty()) return;
@@ -151,30 +181,27 @@ public class InGameMapWall {
                 for (Map.Entry<String, WallInfo> entry : physicalWalls.entrySet()) {
                     WallInfo wall = entry.getValue();
                     
+                    WallState current = wallStates.get(entry.getKey());
+                    if (current != null) {
+                        current.loadedAt = 0;
+                        continue;
+                    }
+                    
                     File mapFile = new File(wall.imagePath);
                     if (!mapFile.exists()) {
                         plugin.getLogger().warning("[InGameMap] Map file not found: " + wall.imagePath);
                         continue;
                     }
                     
-                    // Load and split image async
+                    // Load pieces async, from the piece file if the image did not change
                     final String wallKey = entry.getKey();
                     plugin.getServer().getScheduler().scheduleAsyncTask(plugin, new AsyncTask() {
-                        BufferedImage scaled = null;
-                        boolean success = false;
+                        WallState state = null;
                         
                         @Override
                         public void onRun() {
                             try {
-                                BufferedImage source = ImageIO.read(mapFile);
-                                int targetSize = wall.size * 128;
-                                
-                                scaled = new BufferedImage(targetSize, targetSize, BufferedImage.TYPE_INT_ARGB);
-                                Graphics2D g = scaled.createGraphics();
-                                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                                g.drawImage(source, 0, 0, targetSize, targetSize, null);
-                                g.dispose();
-                                success = true;
+                                state = loadState(wall, mapFile, WallPieceFile.sourceVersion(mapFile));
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
@@ -182,27 +209,19 @@ public class InGameMapWall {
                         
                         @Override
                         public void onCompletion(Server server) {
-                            if (!success || scaled == null) return;
+                            if (state == null || physicalWalls.get(wallKey) != wall) return;
                             
-                            // Store image pieces
-                            for (int gx = 0; gx < wall.size; gx++) {
-                                for (int gy = 0; gy < wall.size; gy++) {
-                                    int imgX = gx * 128;
-                                    int imgY = (wall.size - 1 - gy) * 128;
-                                    BufferedImage piece = scaled.getSubimage(imgX, imgY, 128, 128);
-                                    
-                                    long mapId = wall.mapIds[gx][gy];
-                                    plugin.getMapImages().put(mapId, piece);
-                                }
-                            }
+                            // Pieces are built from the new base when sent, markers are drawn again on the next update
+                            wallStates.put(wallKey, state);
+                            forgetPieces(wall);
                             
                             plugin.getLogger().info("[InGameMap] Refreshed wall: " + wallKey);
                             
-                            // Send to online players in that world
+                            // Send to players near the wall, others get it when they come close
                             Level level = server.getLevelByName(wall.worldName);
                             if (level != null) {
                                 for (Player p : level.getPlayers().values()) {
-                                    sendWallToPlayer(p, wall);
+                                    if (wall.viewers.contains(p.getName())) queueWall(p, wall);
                                 }
                             }
                         }
@@ -213,20 +232,77 @@ public class InGameMapWall {
     }
     
     /**
-     * Send wall images to a player
+     * Queue every piece of a wall for a player
      */
-    private void sendWallToPlayer(Player player, WallInfo wall) {
+    private void queueWall(Player player, WallInfo wall) {
         for (int gx = 0; gx < wall.size; gx++) {
             for (int gy = 0; gy < wall.size; gy++) {
-                long mapId = wall.mapIds[gx][gy];
-                BufferedImage img = plugin.getMapImages().get(mapId);
-                if (img != null) {
-                    plugin.sendMapImage(player, mapId, img);
+                queuePiece(player, wall, gx, gy, null);
+            }
+        }
+    }
+    
+    /**
+     * Queue a piece, or only the rectangle of it that changed since the player was last sent it
+     */
+    private void queuePiece(Player player, WallInfo wall, int gx, int gy, Rectangle rect) {
+        // Block the piece hangs on, as laid out by createWallInBatches
+        int dx = 0, dz = 0;
+        switch (wall.facing) {
+            case NORTH: dx = 1; break;
+            case EAST: dz = -1; break;
+            case WEST: dz = 1; break;
+            default: dx = -1;
+        }
+        int offset = -(wall.size - 1) / 2 + gx;
+        sendQueue.enqueue(player, wall.mapIds[gx][gy],
+            wall.baseX + offset * dx, wall.baseY + gy, wall.baseZ + offset * dz, rect);
+    }
+    
+    /**
+     * Main thread: track who is near each wall, players coming into range get the whole wall once
+     */
+    private void updateViewers() {
+        for (WallInfo wall : physicalWalls.values()) {
+            Set<String> inside = new HashSet<>();
+            Level level = plugin.getServer().getLevelByName(wall.worldName);
+            if (level != null) {
+                for (Player p : level.getPlayers().values()) {
+                    if (!canSee(p, wall)) continue;
+                    inside.add(p.getName());
+                    if (!wall.viewers.contains(p.getName())) queueWall(p, wall);
                 }
             }
+            // Out of range, pieces still queued would be wasted
+            for (String name : wall.viewers) {
+                if (!inside.contains(name)) sendQueue.forget(name, wall.mapIds);
+            }
+            wall.viewers = inside;
         }
     }
     
+    /**
+     * Within the view radius of the wall's base, widened by the wall's own size
+     */
+    private static boolean canSee(Player p, WallInfo wall) {
+        double dx = p.getX() - wall.baseX;
+        double dy = p.getY() - wall.baseY;
+        double dz = p.getZ() - wall.baseZ;
+        double r = wall.viewRadius + wall.size;
+        return dx * dx + dy * dy + dz * dz <= r * r;
+    }
+    
+    /**
+     * Change how far a wall is visible from, false if the world has no wall
+     */
+    public boolean setViewRadius(String worldName, int radius) {
+        WallInfo wall = physicalWalls.get(worldName);
+        if (wall == null) return false;
+        wall.viewRadius = radius;
+        saveWalls();
+        return true;
+    }
+    
     public void startScheduler() {
         int updateTicks = plugin.getMarkerUpdateSeconds() * 20;
         
@@ -237,11 +313,30 @@ public class InGameMapWall {
                 if (physicalWalls.isEmpty()) return;
                 if (plugin.getServer().getOnlinePlayers().isEmpty()) return;
                 if (isUpdating) return;
+                // Skipped cycles under load, the next one draws the latest positions anyway
+                if (!plugin.getLoadGovernor().allowMarkerCycle()) return;
                 
                 updateWallsAsync();
             }
         }, updateTicks, updateTicks);
         
+        // Paced sending of queued pieces
+        plugin.getServer().getScheduler().scheduleRepeatingTask(plugin, new Task() {
+            @Override
+            public void onRun(int tick) {
+                sendQueue.tick();
+            }
+        }, 1);
+        
+        // Wall visibility, once a second
+        plugin.getServer().getScheduler().scheduleDelayedRepeatingTask(plugin, new Task() {
+            @Override
+            public void onRun(int tick) {
+                if (physicalWalls.isEmpty()) return;
+                updateViewers();
+            }
+        }, 20, 20);
+        
         plugin.getLogger().info("[InGameMap] Started (update interval: " + plugin.getMarkerUpdateSeconds() + "s)");
     }
     
@@ -251,19 +346,47 @@ public class InGameMapWall {
     private void updateWallsAsync() {
         // Collect data on main thread (instant)
         Map<String, List<PlayerPos>> worldPlayers = new HashMap<>();
-        Map<String, List<Player>> worldPlayerObjects = new HashMap<>();
+        Map<String, Long> worldFingerprints = new HashMap<>();
+        Map<String, List<Player>> worldViewers = new HashMap<>();
         
-        for (WallInfo wall : physicalWalls.values()) {
+        for (Map.Entry<String, WallInfo> entry : physicalWalls.entrySet()) {
+            WallInfo wall = entry.getValue();
             Level level = plugin.getServer().getLevelByName(wall.worldName);
             if (level == null || level.getPlayers().isEmpty()) continue;
+            WebMapPlugin.MapInfo mapInfo = plugin.getRenderedMaps().get(wall.worldName);
+            if (mapInfo == null) continue;
+            
+            int rangeX = mapInfo.blockMaxX - mapInfo.blockMinX;
+            int rangeZ = mapInfo.blockMaxZ - mapInfo.blockMinZ;
+            if (rangeX <= 0 || rangeZ <= 0) continue;
             
+            // Only players inside the rendered area can be drawn, at the wall pixel they are drawn at
+            int targetSize = wall.size * 128;
             List<PlayerPos> positions = new ArrayList<>();
-            List<Player> players = new ArrayList<>(level.getPlayers().values());
-            for (Player p : players) {
-                positions.add(new PlayerPos(p.getName(), p.getFloorX(), p.getFloorZ()));
+            long fingerprint = 0;
+            for (MarkerIndex.Marker m : plugin.getMarkerIndex().query(wall.worldName,
+                    mapInfo.blockMinX, mapInfo.blockMinZ, mapInfo.blockMaxX + 1, mapInfo.blockMaxZ + 1,
+                    MarkerIndex.PLAYER, Integer.MAX_VALUE)) {
+                double relX = (double)(m.x - mapInfo.blockMinX) / rangeX;
+                double relZ = (double)(m.z - mapInfo.blockMinZ) / rangeZ;
+                
+                if (relX >= 0 && relX <= 1 && relZ >= 0 && relZ <= 1) {
+                    PlayerPos pos = new PlayerPos(m.label, (int)(relX * targetSize), (int)(relZ * targetSize));
+                    positions.add(pos);
+                    // Order independent, the index returns players in any order
+                    fingerprint += pos.fingerprint();
+                }
             }
+            
+            // Idle players: same markers as last drawn and nothing else pending, skip the wall
+            WallState state = wallStates.get(entry.getKey());
+            if (state != null && state.isDrawn(fingerprint)) continue;
+            
+            List<Player> players = new ArrayList<>(level.getPlayers().values());
             worldPlayers.put(wall.worldName, positions);
-            worldPlayerObjects.put(wall.worldName, players);
+            worldFingerprints.put(wall.worldName, fingerprint);
+            players.removeIf(p -> !wall.viewers.contains(p.getName()));
+            worldViewers.put(wall.worldName, players);
         }
         
         if (worldPlayers.isEmpty()) return;
@@ -272,106 +395,91 @@ public class InGameMapWall {
         
         // Heavy work in async thread
         plugin.getServer().getScheduler().scheduleAsyncTask(plugin, new AsyncTask() {
-            private Map<String, Map<Long, BufferedImage>> results = new HashMap<>();
+            private Map<String, Map<Long, MapPieceStore.Piece>> results = new HashMap<>();
+            private Map<String, WallState> usedStates = new HashMap<>();
+            private Map<String, Set<MarkerSprite>> drawnMarkers = new HashMap<>();
+            // Pieces that could not be drawn, dirty again for the next update
+            private Map<String, Set<Integer>> failedPieces = new HashMap<>();
+            // Part of each piece that changed, whole pieces are not listed
+            private Map<Long, Rectangle> changed = new HashMap<>();
             
             @Override
             public void onRun() {
                 for (Map.Entry<String, WallInfo> entry : physicalWalls.entrySet()) {
                     WallInfo wall = entry.getValue();
                     List<PlayerPos> players = worldPlayers.get(wall.worldName);
-                    if (players == null || players.isEmpty()) continue;
-                    
-                    WebMapPlugin.MapInfo mapInfo = plugin.getRenderedMaps().get(wall.worldName);
-                    if (mapInfo == null) continue;
-                    
-                    int rangeX = mapInfo.blockMaxX - mapInfo.blockMinX;
-                    int rangeZ = mapInfo.blockMaxZ - mapInfo.blockMinZ;
-                    if (rangeX <= 0 || rangeZ <= 0) continue;
+                    // Empty still updates, that clears players who walked off the map
+                    if (players == null) continue;
                     
+                    WallState state = null;
+                    Set<Integer> dirty = null;
                     try {
-                        BufferedImage baseImage = getCachedBaseImage(wall);
-                        if (baseImage == null) continue;
-                        
-                        int targetSize = wall.size * 128;
-                        
-                        // Draw player markers
-                        BufferedImage withMarkers = new BufferedImage(targetSize, targetSize, BufferedImage.TYPE_INT_ARGB);
-                        Graphics2D g = withMarkers.createGraphics();
-                        g.drawImage(baseImage, 0, 0, null);
-                        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-                        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                        state = getWallState(entry.getKey(), wall);
+                        if (state == null) continue;
                         
-                        // Calculate sizes based on web proportions
-                        int dotSize = Math.max(8, (int)(targetSize * 0.025));
-                        int fontSize = Math.max(12, (int)(targetSize * 0.022));
-                        int strokeWidth = Math.max(2, (int)(targetSize * 0.004));
-                        int nameGap = Math.max(4, (int)(targetSize * 0.008));
-                        int namePadX = Math.max(4, (int)(targetSize * 0.006));
-                        int namePadY = Math.max(2, (int)(targetSize * 0.003));
+                        MarkerStyle style = getMarkerStyle(wall.size * 128);
+                        List<MarkerSprite> markers = new ArrayList<>();
+                        for (PlayerPos p : players) {
+                            markers.add(new MarkerSprite(p.name, p.x, p.z, style));
+                        }
                         
-                        g.setFont(new Font("SansSerif", Font.BOLD, fontSize));
+                        // Only pieces under a marker that appeared, moved or left look different
+                        // The markers count as drawn only once the pieces are published
+                        Set<MarkerSprite> current = new HashSet<>(markers);
+                        synchronized (state) {
+                            dirty = state.takeDirty();
+                            for (MarkerSprite m : state.lastMarkers) {
+                                if (!current.contains(m)) m.addPieces(dirty, wall.size);
+                            }
+                            for (MarkerSprite m : markers) {
+                                if (!state.lastMarkers.contains(m)) m.addPieces(dirty, wall.size);
+                            }
+                        }
                         
-                        for (PlayerPos p : players) {
-                            double relX = (double)(p.x - mapInfo.blockMinX) / rangeX;
-                            double relZ = (double)(p.z - mapInfo.blockMinZ) / rangeZ;
+                        Map<Long, MapPieceStore.Piece> pieces = new HashMap<>();
+                        Set<Integer> failed = new HashSet<>();
+                        for (int index : dirty) {
+                            int gx = index / wall.size;
+                            int gy = index % wall.size;
+                            BufferedImage base = basePiece(state, wall, gx, gy);
+                            if (base == null) {
+                                // Piece file lost it, read the map image again next time
+                                state.loadedAt = 0;
+                                failed.add(index);
+                                continue;
+                            }
+                            long mapId = wall.mapIds[gx][gy];
+                            MapPieceStore.Piece piece = MapPieceStore.Piece.of(compositePiece(base, gx, gy, wall.size, markers, style));
                             
-                            if (relX >= 0 && relX <= 1 && relZ >= 0 && relZ <= 1) {
-                                int imgX = (int)(relX * targetSize);
-                                int imgZ = (int)(relZ * targetSize);
-                                
-                                // Draw red dot with white border
-                                g.setColor(new Color(255, 51, 51));
-                                g.fillOval(imgX - dotSize/2, imgZ - dotSize/2, dotSize, dotSize);
-                                g.setColor(Color.WHITE);
-                                g.setStroke(new BasicStroke(strokeWidth));
-                                g.drawOval(imgX - dotSize/2, imgZ - dotSize/2, dotSize, dotSize);
-                                
-                                // Draw name with background box
-                                String name = p.name;
-                                FontMetrics fm = g.getFontMetrics();
-                                int textWidth = fm.stringWidth(name);
-                                int textHeight = fm.getAscent();
-                                
-                                int boxWidth = textWidth + namePadX * 2;
-                                int boxHeight = textHeight + namePadY * 2;
-                                int boxX = imgX - boxWidth / 2;
-                                int boxY = imgZ - dotSize/2 - nameGap - boxHeight;
-                                
-                                boxX = Math.max(2, Math.min(targetSize - boxWidth - 2, boxX));
-                                boxY = Math.max(2, boxY);
-                                
-                                g.setColor(new Color(0, 0, 0, 230));
-                                g.fillRoundRect(boxX, boxY, boxWidth, boxHeight, 
-                                    Math.max(2, strokeWidth), Math.max(2, strokeWidth));
-                                
-                                int textX = boxX + namePadX;
-                                int textY = boxY + namePadY + textHeight - fm.getDescent();
-                                g.setColor(Color.WHITE);
-                                g.drawString(name, textX, textY);
+                            // Players near the wall have the previous piece, a moved marker touches a few pixels
+                            MapPieceStore.Piece previous = pieceStore.peek(mapId);
+                            if (previous != null) {
+                                Rectangle rect = MapPieceStore.Piece.changedRect(previous, piece);
+                                if (rect == null) continue;
+                                if (rect.width * rect.height <= MAX_PARTIAL_AREA) changed.put(mapId, rect);
                             }
+                            pieces.put(mapId, piece);
                         }
-                        g.dispose();
                         
-                        // Split into pieces
-                        Map<Long, BufferedImage> pieces = new HashMap<>();
-                        for (int gx = 0; gx < wall.size; gx++) {
-                            for (int gy = 0; gy < wall.size; gy++) {
-                                int imgX = gx * 128;
-                                int imgY = (wall.size - 1 - gy) * 128;
-                                
-                                BufferedImage piece = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
-                                Graphics2D pg = piece.createGraphics();
-                                pg.drawImage(withMarkers, 0, 0, 128, 128, imgX, imgY, imgX + 128, imgY + 128, null);
-                                pg.dispose();
-                                
-                                pieces.put(wall.mapIds[gx][gy], piece);
+                        // Encode here rather than on the main thread while sending
+                        if (!worldViewers.get(wall.worldName).isEmpty()) {
+                            for (Map.Entry<Long, MapPieceStore.Piece> piece : pieces.entrySet()) {
+                                plugin.getMapPacketCache().get(piece.getKey(), piece.getValue(), changed.get(piece.getKey()));
                             }
                         }
                         
                         results.put(wall.worldName, pieces);
+                        usedStates.put(wall.worldName, state);
+                        drawnMarkers.put(wall.worldName, current);
+                        failedPieces.put(wall.worldName, failed);
                         
                     } catch (Exception e) {
-                        // Skip
+                        // Skip, the pieces are drawn on the next update
+                        if (state != null && dirty != null) {
+                            synchronized (state) {
+                                state.dirty.addAll(dirty);
+                            }
+                        }
                     }
                 }
             }
@@ -380,96 +488,330 @@ public class InGameMapWall {
             public void onCompletion(Server server) {
                 isUpdating = false;
                 
-                // Batch send packets
-                List<PacketData> allPackets = new ArrayList<>();
-                
-                for (Map.Entry<String, Map<Long, BufferedImage>> entry : results.entrySet()) {
+                // Queue for players in range, paced per player
+                for (Map.Entry<String, Map<Long, MapPieceStore.Piece>> entry : results.entrySet()) {
                     String worldName = entry.getKey();
-                    Map<Long, BufferedImage> pieces = entry.getValue();
-                    List<Player> players = worldPlayerObjects.get(worldName);
+                    Map<Long, MapPieceStore.Piece> pieces = entry.getValue();
+                    List<Player> players = worldViewers.get(worldName);
+                    WallInfo wall = physicalWalls.get(worldName);
                     
-                    if (players == null) continue;
-                    players.removeIf(p -> !p.isOnline());
-                    if (players.isEmpty()) continue;
+                    if (players == null || wall == null) continue;
+                    // Wall rebuilt meanwhile, these pieces are based on the old image
+                    WallState state = usedStates.get(worldName);
+                    if (wallStates.get(worldName) != state) continue;
+                    synchronized (state) {
+                        state.lastMarkers = drawnMarkers.get(worldName);
+                        state.drawnFingerprint = worldFingerprints.get(worldName);
+                        state.dirty.addAll(failedPieces.get(worldName));
+                    }
+                    // Dropped pieces are rebuilt with the markers of the pieces in the store
+                    state.publishedMarkers = drawnMarkers.get(worldName);
+                    state.published++;
+                    // Players out of range still need the current pieces when they come close
+                    players.removeIf(p -> !p.isOnline() || !wall.viewers.contains(p.getName()));
                     
-                    for (Map.Entry<Long, BufferedImage> pieceEntry : pieces.entrySet()) {
-                        long mapId = pieceEntry.getKey();
-                        BufferedImage image = pieceEntry.getValue();
-                        
-                        plugin.getMapImages().put(mapId, image);
-                        
-                        for (Player p : players) {
-                            allPackets.add(new PacketData(p, mapId, image));
+                    for (int gx = 0; gx < wall.size; gx++) {
+                        for (int gy = 0; gy < wall.size; gy++) {
+                            MapPieceStore.Piece piece = pieces.get(wall.mapIds[gx][gy]);
+                            if (piece == null) continue;
+                            
+                            pieceStore.put(wall.mapIds[gx][gy], piece);
+                            
+                            Rectangle rect = changed.get(wall.mapIds[gx][gy]);
+                            for (Player p : players) {
+                                queuePiece(p, wall, gx, gy, rect);
+                            }
                         }
                     }
                 }
-                
-                if (!allPackets.isEmpty()) {
-                    sendPacketsInBatches(allPackets);
-                }
             }
         });
     }
     
-    private void sendPacketsInBatches(List<PacketData> packets) {
-        final int BATCH_SIZE = 10;
-        final int[] index = {0};
+    /**
+     * Base pieces of a wall, checked against the map image once they are older than CACHE_DURATION
+     * Pieces that differ from the previous base are marked dirty. Null if there is no map image.
+     */
+    private WallState getWallState(String wallKey, WallInfo wall) throws IOException {
+        WallState state = wallStates.get(wallKey);
+        long now = System.currentTimeMillis();
+        if (state != null && (now - state.loadedAt) < CACHE_DURATION) return state;
         
-        plugin.getServer().getScheduler().scheduleRepeatingTask(plugin, new Task() {
-            @Override
-            public void onRun(int tick) {
-                int sent = 0;
-                while (sent < BATCH_SIZE && index[0] < packets.size()) {
-                    PacketData pd = packets.get(index[0]);
-                    if (pd.player.isOnline()) {
-                        plugin.sendMapImage(pd.player, pd.mapId, pd.image);
+        File mapFile = new File(wall.imagePath);
+        if (!mapFile.exists()) return null;
+        long version = WallPieceFile.sourceVersion(mapFile);
+        // Same image, unless the piece file lost pieces the state relies on
+        if (state != null && state.version == version && (state.base != null || hasStoredPieces(wall, version))) {
+            state.loadedAt = now;
+            return state;
+        }
+        
+        if (state == null) {
+            state = loadState(wall, mapFile, version);
+            if (state == null) return null;
+            // Nothing is known about what players were shown, send everything once
+            for (int i = 0; i < wall.size * wall.size; i++) state.dirty.add(i);
+            wallStates.put(wallKey, state);
+            return state;
+        }
+        
+        BufferedImage source = ImageIO.read(mapFile);
+        if (source == null) return null;
+        BufferedImage[][] fresh = buildBasePieces(source, wall.size);
+        synchronized (state) {
+            for (int gx = 0; gx < wall.size; gx++) {
+                for (int gy = 0; gy < wall.size; gy++) {
+                    BufferedImage old = basePiece(state, wall, gx, gy);
+                    if (old == null || !samePixels(old, fresh[gx][gy])) {
+                        state.dirty.add(gx * wall.size + gy);
                     }
-                    index[0]++;
-                    sent++;
                 }
-                
-                if (index[0] >= packets.size()) {
-                    this.cancel();
+            }
+            // The old base pieces in the file are overwritten here
+            state.base = storePieces(wall, fresh, version) ? null : fresh;
+            state.version = version;
+            state.loadedAt = now;
+        }
+        return state;
+    }
+    
+    /**
+     * Base pieces of a wall for a version of its map image, null if the image cannot be read
+     * If the piece file has all pieces for this version nothing is read; otherwise
+     * the image is decoded and scaled, and the pieces are stored for next time.
+     */
+    private WallState loadState(WallInfo wall, File mapFile, long version) throws IOException {
+        if (hasStoredPieces(wall, version)) return new WallState(null, version);
+        
+        BufferedImage source = ImageIO.read(mapFile);
+        if (source == null) return null;
+        BufferedImage[][] pieces = buildBasePieces(source, wall.size);
+        // Kept in memory only if the piece file cannot hold them
+        return new WallState(storePieces(wall, pieces, version) ? null : pieces, version);
+    }
+    
+    /**
+     * A base piece, from memory or from the piece file. Null if neither has it.
+     */
+    private BufferedImage basePiece(WallState state, WallInfo wall, int gx, int gy) {
+        BufferedImage[][] base = state.base;
+        if (base != null) return base[gx][gy];
+        if (pieceFile == null) return null;
+        try {
+            return pieceFile.get(wall.mapIds[gx][gy], state.version);
+        } catch (IOException e) {
+            plugin.getLogger().warning("[InGameMap] Failed to read wall piece: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private boolean hasStoredPieces(WallInfo wall, long version) {
+        if (pieceFile == null) return false;
+        for (long[] column : wall.mapIds) {
+            for (long mapId : column) {
+                if (!pieceFile.contains(mapId, version)) return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return true if the piece file now holds all pieces
+     */
+    private boolean storePieces(WallInfo wall, BufferedImage[][] pieces, long version) {
+        if (pieceFile == null) return false;
+        try {
+            for (int gx = 0; gx < wall.size; gx++) {
+                for (int gy = 0; gy < wall.size; gy++) {
+                    pieceFile.put(wall.mapIds[gx][gy], version, pieces[gx][gy]);
                 }
             }
-        }, 1);
+            return true;
+        } catch (IOException e) {
+            plugin.getLogger().warning("[InGameMap] Failed to store wall pieces: " + e.getMessage());
+            return false;
+        }
     }
     
-    private BufferedImage getCachedBaseImage(WallInfo wall) {
-        String cacheKey = wall.worldName + "_" + wall.size;
-        BufferedImage cached = cachedBaseImages.get(cacheKey);
-        Long timestamp = cacheTimestamps.get(cacheKey);
-        long now = System.currentTimeMillis();
+    /**
+     * Main thread: what a map id shows now, null if it is not a loaded wall piece or not ready yet
+     * A piece dropped from the store is composited again off the main thread from
+     * its base piece and the markers of the last published update, then queued
+     * for the players who asked for it.
+     */
+    public MapPieceStore.Piece getPiece(Player player, long mapId) {
+        MapPieceStore.Piece piece = pieceStore.get(mapId);
+        if (piece != null) return piece;
         
-        if (cached != null && timestamp != null && (now - timestamp) < CACHE_DURATION) {
-            return cached;
+        List<Player> waiting = rebuilding.get(mapId);
+        if (waiting != null) {
+            if (!waiting.contains(player)) waiting.add(player);
+            return null;
         }
         
-        try {
-            File mapFile = new File(wall.imagePath);
-            if (!mapFile.exists()) return null;
-            
-            BufferedImage source = ImageIO.read(mapFile);
-            int targetSize = wall.size * 128;
+        for (Map.Entry<String, WallInfo> entry : physicalWalls.entrySet()) {
+            WallInfo wall = entry.getValue();
+            // Ids are handed out in gx, gy order
+            long index = mapId - wall.mapIds[0][0];
+            if (index < 0 || index >= (long) wall.size * wall.size) continue;
+            int gx = (int) (index / wall.size);
+            int gy = (int) (index % wall.size);
+            if (wall.mapIds[gx][gy] != mapId) continue;
             
-            BufferedImage scaled = new BufferedImage(targetSize, targetSize, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g = scaled.createGraphics();
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.drawImage(source, 0, 0, targetSize, targetSize, null);
-            g.dispose();
+            WallState state = wallStates.get(entry.getKey());
+            if (state == null) return null;
+            waiting = new ArrayList<>();
+            waiting.add(player);
+            rebuilding.put(mapId, waiting);
+            rebuildPiece(entry.getKey(), wall, state, gx, gy);
+            return null;
+        }
+        return null;
+    }
+    
+    /**
+     * Composite a dropped piece again in the background, then queue it for whoever waits for it
+     */
+    private void rebuildPiece(String wallKey, WallInfo wall, WallState state, int gx, int gy) {
+        long mapId = wall.mapIds[gx][gy];
+        List<MarkerSprite> markers = new ArrayList<>(state.publishedMarkers);
+        int published = state.published;
+        plugin.getServer().getScheduler().scheduleAsyncTask(plugin, new AsyncTask() {
+            private MapPieceStore.Piece piece;
             
-            cachedBaseImages.put(cacheKey, scaled);
-            cacheTimestamps.put(cacheKey, now);
+            @Override
+            public void onRun() {
+                BufferedImage base;
+                synchronized (state) {
+                    base = basePiece(state, wall, gx, gy);
+                }
+                if (base == null) return;
+                piece = MapPieceStore.Piece.of(compositePiece(base, gx, gy, wall.size, markers, getMarkerStyle(wall.size * 128)));
+            }
             
-            return scaled;
-        } catch (Exception e) {
-            return null;
+            @Override
+            public void onCompletion(Server server) {
+                List<Player> waiting = rebuilding.remove(mapId);
+                if (piece == null || physicalWalls.get(wallKey) != wall || wallStates.get(wallKey) != state) return;
+                // An update published newer pieces meanwhile, or is comparing against the store right now:
+                // keep the store as it is, the players ask again
+                if (!isUpdating && state.published == published && pieceStore.peek(mapId) == null) {
+                    pieceStore.put(mapId, piece);
+                }
+                for (Player p : waiting) {
+                    if (p.isOnline()) queuePiece(p, wall, gx, gy, null);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Map ids of all walls, pieces of other ids are freed in the piece file
+     */
+    private Set<Long> liveMapIds() {
+        Set<Long> ids = new HashSet<>();
+        for (WallInfo wall : physicalWalls.values()) {
+            for (long[] column : wall.mapIds) {
+                for (long id : column) ids.add(id);
+            }
+        }
+        return ids;
+    }
+    
+    private void forgetPieces(WallInfo wall) {
+        for (long[] column : wall.mapIds) {
+            for (long mapId : column) pieceStore.remove(mapId);
+        }
+    }
+    
+    private void releasePieces() {
+        if (pieceFile == null) return;
+        Set<Long> ids = liveMapIds();
+        plugin.getServer().getScheduler().scheduleAsyncTask(plugin, new AsyncTask() {
+            @Override
+            public void onRun() {
+                try {
+                    pieceFile.retain(ids);
+                } catch (IOException e) {
+                    plugin.getLogger().warning("[InGameMap] Failed to free wall pieces: " + e.getMessage());
+                }
+            }
+        });
+    }
+    
+    /**
+     * Scale the map image straight into 128x128 pieces, indexed [gx][gy] like mapIds
+     * The whole wall is never held at full size (a 100x100 wall would be 12800x12800).
+     */
+    static BufferedImage[][] buildBasePieces(BufferedImage source, int size) {
+        BufferedImage[][] pieces = new BufferedImage[size][size];
+        int w = source.getWidth();
+        int h = source.getHeight();
+        for (int gx = 0; gx < size; gx++) {
+            for (int gy = 0; gy < size; gy++) {
+                int row = size - 1 - gy;
+                int sx1 = (int) Math.round((double) gx * w / size);
+                int sx2 = (int) Math.round((double) (gx + 1) * w / size);
+                int sy1 = (int) Math.round((double) row * h / size);
+                int sy2 = (int) Math.round((double) (row + 1) * h / size);
+                
+                BufferedImage piece = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = piece.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(source, 0, 0, 128, 128, sx1, sy1, Math.max(sx1 + 1, sx2), Math.max(sy1 + 1, sy2), null);
+                g.dispose();
+                pieces[gx][gy] = piece;
+            }
         }
+        return pieces;
     }
     
+    /**
+     * One wall piece: its base with every marker that reaches into it, drawn at 128x128
+     */
+    private static BufferedImage compositePiece(BufferedImage base, int gx, int gy, int size,
+                                                List<MarkerSprite> markers, MarkerStyle style) {
+        int imgX = gx * 128;
+        int imgY = (size - 1 - gy) * 128;
+        
+        BufferedImage piece = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = piece.createGraphics();
+        g.drawImage(base, 0, 0, null);
+        g.translate(-imgX, -imgY);
+        for (MarkerSprite m : markers) {
+            if (m.maxX < imgX || m.minX >= imgX + 128 || m.maxY < imgY || m.minY >= imgY + 128) continue;
+            m.draw(g, style);
+        }
+        g.dispose();
+        return piece;
+    }
+    
+    /**
+     * Style for a wall size, shared by all walls of that size along with its label sprites
+     * Styles of sizes no wall uses any more are dropped.
+     */
+    private MarkerStyle getMarkerStyle(int targetSize) {
+        MarkerStyle style = markerStyles.get(targetSize);
+        if (style != null) return style;
+        Set<Integer> inUse = new HashSet<>();
+        for (WallInfo wall : physicalWalls.values()) inUse.add(wall.size * 128);
+        markerStyles.keySet().retainAll(inUse);
+        return markerStyles.computeIfAbsent(targetSize, MarkerStyle::new);
+    }
+    
+    private static boolean samePixels(BufferedImage a, BufferedImage b) {
+        int[] pa = a.getRGB(0, 0, 128, 128, null, 0, 128);
+        int[] pb = b.getRGB(0, 0, 128, 128, null, 0, 128);
+        return Arrays.equals(pa, pb);
+    }
+    
+    /**
+     * Re-read the base pieces on the next update, only pieces that changed are resent
+     */
     public void clearCache() {
-        cachedBaseImages.clear();
-        cacheTimestamps.clear();
+        for (WallState state : wallStates.values()) {
+            state.loadedAt = 0;
+        }
     }
     
     public void create(Player player, int size) {
@@ -499,21 +841,14 @@ public class InGameMapWall {
         final String playerName = player.getName();
         
         plugin.getServer().getScheduler().scheduleAsyncTask(plugin, new AsyncTask() {
-            BufferedImage scaled = null;
-            boolean success = false;
+            BufferedImage[][] pieces = null;
+            long version;
             
             @Override
             public void onRun() {
                 try {
-                    BufferedImage source = ImageIO.read(mapFile);
-                    int targetSize = finalSize * 128;
-                    
-                    scaled = new BufferedImage(targetSize, targetSize, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D g = scaled.createGraphics();
-                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                    g.drawImage(source, 0, 0, targetSize, targetSize, null);
-                    g.dispose();
-                    success = true;
+                    version = WallPieceFile.sourceVersion(mapFile);
+                    pieces = buildBasePieces(ImageIO.read(mapFile), finalSize);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -521,20 +856,20 @@ public class InGameMapWall {
             
             @Override
             public void onCompletion(Server server) {
-                if (!success || scaled == null) {
+                if (pieces == null) {
                     Player p = server.getPlayer(playerName);
                     if (p != null) p.sendMessage("\u00a7cFailed to load map!");
                     return;
                 }
                 
-                createWallInBatches(level, worldName, facing, wallX, wallY, wallZ, finalSize, scaled, playerName);
+                createWallInBatches(level, worldName, facing, wallX, wallY, wallZ, finalSize, pieces, version, playerName);
             }
         });
     }
     
     private void createWallInBatches(Level level, String worldName, BlockFace facing, 
                                       int wallX, int wallY, int wallZ, int size, 
-                                      BufferedImage scaled, String playerName) {
+                                      BufferedImage[][] pieces, long version, String playerName) {
         
         WallInfo wall = new WallInfo();
         wall.worldName = worldName;
@@ -545,6 +880,7 @@ public class InGameMapWall {
         wall.baseY = wallY;
         wall.baseZ = wallZ;
         wall.facing = facing;
+        wall.viewRadius = plugin.getWallViewRadius();
         
         int dx = 0, dz = 0, fx = 0, fz = 0, meta = 0;
         switch (facing) {
@@ -555,7 +891,6 @@ public class InGameMapWall {
             default: dx = -1; fz = 2; meta = 3;
         }
         
-        final int fdx = dx, fdz = dz, ffx = fx, ffz = fz, fmeta = meta;
         int startOffset = -(size - 1) / 2;
         
         for (int gx = 0; gx < size; gx++) {
@@ -565,97 +900,54 @@ public class InGameMapWall {
         }
         
         // Remove old wall for this world if exists
-        physicalWalls.remove(worldName);
-        physicalWalls.put(worldName, wall);
+        WallInfo old = physicalWalls.put(worldName, wall);
+        if (old != null) forgetPieces(old);
+        plugin.getMarkerIndex().put(toMarker(wall));
         
         // Save to file
         saveWalls();
         
-        clearCache();
-        
-        final int batchSize = 10;
-        final int totalBlocks = size * size;
-        final int[] currentIndex = {0};
+        // The frames get the bare map, markers follow on the next update
+        WallState state = new WallState(pieces, version);
+        wallStates.put(worldName, state);
         
-        plugin.getServer().getScheduler().scheduleRepeatingTask(plugin, new Task() {
+        // Keep the pieces for restarts, the replaced wall's are freed
+        releasePieces();
+        plugin.getServer().getScheduler().scheduleAsyncTask(plugin, new AsyncTask() {
             @Override
-            public void onRun(int tick) {
-                int processed = 0;
-                
-                while (processed < batchSize && currentIndex[0] < totalBlocks) {
-                    int gx = currentIndex[0] % size;
-                    int gy = currentIndex[0] / size;
-                    
-                    int offset = startOffset + gx;
-                    int bx = wallX + offset * fdx + ffx;
-                    int by = wallY + gy;
-                    int bz = wallZ + offset * fdz + ffz;
-                    
-                    level.setBlock(new Vector3(bx, by, bz), Block.get(Block.QUARTZ_BLOCK), true, false);
-                    
-                    int frX = bx + (facing == BlockFace.EAST ? -1 : facing == BlockFace.WEST ? 1 : 0);
-                    int frZ = bz + (facing == BlockFace.SOUTH ? -1 : facing == BlockFace.NORTH ? 1 : 0);
-                    
-                    level.setBlock(new Vector3(frX, by, frZ), Block.get(Block.ITEM_FRAME_BLOCK, fmeta), true, false);
-                    
-                    FullChunk chunk = level.getChunk(frX >> 4, frZ >> 4, true);
-                    if (chunk != null) {
-                        CompoundTag nbt = new CompoundTag()
-                            .putString("id", BlockEntity.ITEM_FRAME)
-                            .putInt("x", frX)
-                            .putInt("y", by)
-                            .putInt("z", frZ);
-                        BlockEntity.createBlockEntity(BlockEntity.ITEM_FRAME, chunk, nbt);
-                    }
-                    
-                    int imgX = gx * 128;
-                    int imgY = (size - 1 - gy) * 128;
-                    BufferedImage piece = scaled.getSubimage(imgX, imgY, 128, 128);
-                    
-                    long mapId = wall.mapIds[gx][gy];
-                    plugin.getMapImages().put(mapId, piece);
-                    
-                    BlockEntity be = level.getBlockEntity(new Vector3(frX, by, frZ));
-                    if (be instanceof BlockEntityItemFrame) {
-                        ItemMap mapItem = new ItemMap();
-                        CompoundTag mapTag = new CompoundTag();
-                        mapTag.putLong("map_uuid", mapId);
-                        mapItem.setNamedTag(mapTag);
-                        mapItem.setDamage((int)(mapId & 0x7FFFFFFF));
-                        mapItem.setImage(piece);
-                        ((BlockEntityItemFrame) be).setItem(mapItem);
-                    }
-                    
-                    currentIndex[0]++;
-                    processed++;
-                }
-                
-                if (currentIndex[0] % 100 == 0 || currentIndex[0] == totalBlocks) {
-                    Player p = plugin.getServer().getPlayer(playerName);
-                    if (p != null) {
-                        int percent = currentIndex[0] * 100 / totalBlocks;
-                        p.sendMessage("\u00a77Progress: " + percent + "%");
-                    }
-                }
-                
-                if (currentIndex[0] >= totalBlocks) {
-                    Player p = plugin.getServer().getPlayer(playerName);
-                    if (p != null) {
-                        p.sendMessage("\u00a7aMap wall created! (" + size + "x" + size + ")");
-                        p.sendMessage("\u00a77Wall will persist after server restart.");
-                    }
-                    this.cancel();
+            public void onRun() {
+                if (!storePieces(wall, pieces, version)) return;
+                // Read from the file from now on, unless the base was replaced meanwhile
+                synchronized (state) {
+                    if (state.base == pieces) state.base = null;
                 }
             }
-        }, 1);
+        });
+        
+        // A build still running here would place frames for the replaced wall
+        WallBuild running = builds.remove(worldName);
+        if (running != null) running.cancel();
+        
+        WallBuild build = new WallBuild(level, wall, pieces, playerName, startOffset, dx, dz, fx, fz, meta);
+        builds.put(worldName, build);
+        plugin.getServer().getScheduler().scheduleRepeatingTask(plugin, build, 1);
+    }
+    
+    /**
+     * Stop building the wall in a world; its data is removed, placed blocks stay
+     *
+     * @return false if no wall is being built there
+     */
+    public boolean cancelBuild(String worldName) {
+        if (!builds.containsKey(worldName)) return false;
+        removeWall(worldName);
+        return true;
     }
     
     public void onPlayerJoin(Player player) {
-        // Send wall images to player
+        // A new session has no wall images, send them again once in range
         for (WallInfo wall : physicalWalls.values()) {
-            if (wall.worldName.equals(player.getLevel().getName())) {
-                sendWallToPlayer(player, wall);
-            }
+            wall.viewers.remove(player.getName());
         }
     }
     
@@ -663,8 +955,18 @@ public class InGameMapWall {
      * Remove a wall
      */
     public void removeWall(String worldName) {
-        physicalWalls.remove(worldName);
+        WallBuild build = builds.remove(worldName);
+        if (build != null) build.cancel();
+        WallInfo wall = physicalWalls.remove(worldName);
+        wallStates.remove(worldName);
+        if (wall != null) forgetPieces(wall);
+        plugin.getMarkerIndex().remove(MarkerIndex.WALL, worldName);
         saveWalls();
+        releasePieces();
+    }
+    
+    public void close() {
+        if (pieceFile != null) pieceFile.close();
     }
     
     public void updateAll() {
@@ -680,29 +982,324 @@ public class InGameMapWall {
         return BlockFace.EAST;
     }
     
+    private static MarkerIndex.Marker toMarker(WallInfo wall) {
+        return new MarkerIndex.Marker(MarkerIndex.WALL, wall.worldName, "Map wall " + wall.size + "x" + wall.size,
+            wall.worldName, wall.baseX, wall.baseY, wall.baseZ);
+    }
+    
     public int getWallCount() {
         return physicalWalls.size();
     }
     
-    private static class PacketData {
-        Player player;
-        long mapId;
-        BufferedImage image;
-        PacketData(Player p, long id, BufferedImage img) {
-            this.player = p;
-            this.mapId = id;
-            this.image = img;
+    public MapSendQueue getSendQueue() {
+        return sendQueue;
+    }
+    
+    public MapPieceStore getPieceStore() {
+        return pieceStore;
+    }
+    
+    /**
+     * Places the blocks, frames and maps of a new wall within a main thread time budget per tick
+     * Pieces are placed chunk by chunk, so each chunk is looked up once; every
+     * frame is created with its map already inside instead of being filled
+     * in afterwards.
+     */
+    private class WallBuild extends Task {
+        final Level level;
+        final WallInfo wall;
+        final BufferedImage[][] pieces;
+        final String playerName;
+        final int startOffset, dx, dz, fx, fz, meta;
+        // Pieces (gx * size + gy) in placing order, grouped by the chunk of their frame
+        final int[] order;
+        int next;
+        int reportedPercent;
+        long chunkKey = Long.MIN_VALUE;
+        FullChunk chunk;
+        
+        WallBuild(Level level, WallInfo wall, BufferedImage[][] pieces, String playerName,
+                  int startOffset, int dx, int dz, int fx, int fz, int meta) {
+            this.level = level;
+            this.wall = wall;
+            this.pieces = pieces;
+            this.playerName = playerName;
+            this.startOffset = startOffset;
+            this.dx = dx;
+            this.dz = dz;
+            this.fx = fx;
+            this.fz = fz;
+            this.meta = meta;
+            
+            int size = wall.size;
+            Integer[] indexes = new Integer[size * size];
+            for (int i = 0; i < indexes.length; i++) indexes[i] = i;
+            // Frame position only depends on gx; bottom row first within a chunk
+            Arrays.sort(indexes, Comparator.<Integer>comparingLong(i -> frameChunk(i / size))
+                .thenComparingInt(i -> i % size)
+                .thenComparingInt(i -> i / size));
+            order = new int[indexes.length];
+            for (int i = 0; i < order.length; i++) order[i] = indexes[i];
+        }
+        
+        @Override
+        public void onRun(int tick) {
+            long budget = plugin.getLoadGovernor().wallBuildBudgetNanos();
+            if (budget <= 0) return;
+            long deadline = System.nanoTime() + budget;
+            
+            // At least one piece per tick, however slow
+            do {
+                int index = order[next++];
+                place(index / wall.size, index % wall.size);
+            } while (next < order.length && System.nanoTime() < deadline);
+            
+            int percent = next * 100 / order.length;
+            Player p = plugin.getServer().getPlayer(playerName);
+            if (p != null && percent / 10 > reportedPercent / 10 && next < order.length) {
+                p.sendMessage("\u00a77Progress: " + percent + "% (" + next + "/" + order.length + " maps)");
+            }
+            reportedPercent = percent;
+            
+            if (next >= order.length) {
+                builds.remove(wall.worldName, this);
+                if (p != null) {
+                    p.sendMessage("\u00a7aMap wall created! (" + wall.size + "x" + wall.size + ")");
+                    p.sendMessage("\u00a77Wall will persist after server restart.");
+                }
+                this.cancel();
+            }
+        }
+        
+        private void place(int gx, int gy) {
+            int offset = startOffset + gx;
+            int bx = wall.baseX + offset * dx + fx;
+            int by = wall.baseY + gy;
+            int bz = wall.baseZ + offset * dz + fz;
+            
+            level.setBlock(new Vector3(bx, by, bz), Block.get(Block.QUARTZ_BLOCK), true, false);
+            
+            int frX = frameX(bx);
+            int frZ = frameZ(bz);
+            level.setBlock(new Vector3(frX, by, frZ), Block.get(Block.ITEM_FRAME_BLOCK, meta), true, false);
+            
+            long key = MapRenderer.chunkKey(frX >> 4, frZ >> 4);
+            if (key != chunkKey) {
+                chunk = level.getChunk(frX >> 4, frZ >> 4, true);
+                chunkKey = key;
+            }
+            if (chunk == null) return;
+            
+            long mapId = wall.mapIds[gx][gy];
+            ItemMap mapItem = new ItemMap();
+            CompoundTag mapTag = new CompoundTag();
+            mapTag.putLong("map_uuid", mapId);
+            mapItem.setNamedTag(mapTag);
+            mapItem.setDamage((int)(mapId & 0x7FFFFFFF));
+            mapItem.setImage(pieces[gx][gy]);
+            
+            CompoundTag nbt = new CompoundTag()
+                .putString("id", BlockEntity.ITEM_FRAME)
+                .putInt("x", frX)
+                .putInt("y", by)
+                .putInt("z", frZ)
+                .putCompound("Item", NBTIO.putItemHelper(mapItem));
+            BlockEntity.createBlockEntity(BlockEntity.ITEM_FRAME, chunk, nbt);
+        }
+        
+        private long frameChunk(int gx) {
+            int offset = startOffset + gx;
+            int frX = frameX(wall.baseX + offset * dx + fx);
+            int frZ = frameZ(wall.baseZ + offset * dz + fz);
+            return MapRenderer.chunkKey(frX >> 4, frZ >> 4);
+        }
+        
+        private int frameX(int bx) {
+            return bx + (wall.facing == BlockFace.EAST ? -1 : wall.facing == BlockFace.WEST ? 1 : 0);
+        }
+        
+        private int frameZ(int bz) {
+            return bz + (wall.facing == BlockFace.SOUTH ? -1 : wall.facing == BlockFace.NORTH ? 1 : 0);
         }
     }
     
     private static class PlayerPos {
         String name;
+        // Wall pixels
         int x, z;
         PlayerPos(String name, int x, int z) {
             this.name = name;
             this.x = x;
             this.z = z;
         }
+        
+        long fingerprint() {
+            long h = name.hashCode() * 0x9E3779B97F4A7C15L + x;
+            h = h * 0x9E3779B97F4A7C15L + z;
+            return h ^ (h >>> 29);
+        }
+    }
+    
+    private static class WallState {
+        // Immutable once built, composited pieces are copies. Null while the piece file holds them.
+        BufferedImage[][] base;
+        // Source version of the map image the base was scaled from
+        long version;
+        volatile long loadedAt = System.currentTimeMillis();
+        Set<MarkerSprite> lastMarkers = new HashSet<>();
+        // Pieces (gx * size + gy) to recomposite and resend on the next update
+        Set<Integer> dirty = new HashSet<>();
+        // Fingerprint of the marker positions in lastMarkers, null before the first update
+        Long drawnFingerprint;
+        // Markers on the pieces in the store and the number of updates that put pieces there (main thread)
+        Set<MarkerSprite> publishedMarkers = new HashSet<>();
+        int published;
+        
+        WallState(BufferedImage[][] base, long version) {
+            this.base = base;
+            this.version = version;
+        }
+        
+        /**
+         * Main thread: whether an update with these markers would change nothing
+         */
+        synchronized boolean isDrawn(long fingerprint) {
+            return drawnFingerprint != null && drawnFingerprint == fingerprint && dirty.isEmpty()
+                && System.currentTimeMillis() - loadedAt < CACHE_DURATION;
+        }
+        
+        Set<Integer> takeDirty() {
+            Set<Integer> taken = dirty;
+            dirty = new HashSet<>();
+            return taken;
+        }
+    }
+    
+    /**
+     * Marker sizes, in proportion to the wall like on the web map
+     * The dot and every name label are rasterized once and blitted afterwards;
+     * labels are kept per name, for the font size of this style.
+     */
+    private static class MarkerStyle {
+        private static final int MAX_LABELS = 1000;
+        
+        final int dotSize, strokeWidth, nameGap, namePadX, namePadY, targetSize;
+        // Space around the dot for its border
+        final int dotMargin;
+        final Font font;
+        final FontMetrics metrics;
+        final BufferedImage dot;
+        private final Map<String, BufferedImage> labels = new ConcurrentHashMap<>();
+        
+        MarkerStyle(int targetSize) {
+            this.targetSize = targetSize;
+            dotSize = Math.max(8, (int)(targetSize * 0.025));
+            strokeWidth = Math.max(2, (int)(targetSize * 0.004));
+            nameGap = Math.max(4, (int)(targetSize * 0.008));
+            namePadX = Math.max(4, (int)(targetSize * 0.006));
+            namePadY = Math.max(2, (int)(targetSize * 0.003));
+            dotMargin = strokeWidth + 1;
+            font = new Font("SansSerif", Font.BOLD, Math.max(12, (int)(targetSize * 0.022)));
+            
+            Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            metrics = g.getFontMetrics(font);
+            g.dispose();
+            
+            // Red dot with white border
+            dot = new BufferedImage(dotSize + dotMargin * 2, dotSize + dotMargin * 2, BufferedImage.TYPE_INT_ARGB);
+            g = dot.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(new Color(255, 51, 51));
+            g.fillOval(dotMargin, dotMargin, dotSize, dotSize);
+            g.setColor(Color.WHITE);
+            g.setStroke(new BasicStroke(strokeWidth));
+            g.drawOval(dotMargin, dotMargin, dotSize, dotSize);
+            g.dispose();
+        }
+        
+        /**
+         * Name with background box
+         */
+        BufferedImage label(String name) {
+            BufferedImage label = labels.get(name);
+            if (label != null) return label;
+            // Names of players long gone pile up otherwise
+            if (labels.size() >= MAX_LABELS) labels.clear();
+            
+            int width = metrics.stringWidth(name) + namePadX * 2;
+            int height = metrics.getAscent() + namePadY * 2;
+            label = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = label.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(new Color(0, 0, 0, 230));
+            g.fillRoundRect(0, 0, width, height, Math.max(2, strokeWidth), Math.max(2, strokeWidth));
+            g.setFont(font);
+            g.setColor(Color.WHITE);
+            g.drawString(name, namePadX, namePadY + metrics.getAscent() - metrics.getDescent());
+            g.dispose();
+            
+            labels.put(name, label);
+            return label;
+        }
+    }
+    
+    /**
+     * A player dot with its name box, laid out in wall pixels
+     * Equal sprites draw identical pixels, so a piece only changes when its sprites do.
+     */
+    private static class MarkerSprite {
+        final String name;
+        final int x, z;
+        final BufferedImage label;
+        final int boxX, boxY;
+        // Bounds of everything drawn, inclusive
+        final int minX, minY, maxX, maxY;
+        
+        MarkerSprite(String name, int x, int z, MarkerStyle s) {
+            this.name = name;
+            this.x = x;
+            this.z = z;
+            label = s.label(name);
+            int boxWidth = label.getWidth();
+            int boxHeight = label.getHeight();
+            boxX = Math.max(2, Math.min(s.targetSize - boxWidth - 2, x - boxWidth / 2));
+            boxY = Math.max(2, z - s.dotSize / 2 - s.nameGap - boxHeight);
+            
+            int r = s.dotSize / 2 + s.dotMargin;
+            minX = Math.min(x - r, boxX);
+            minY = Math.min(z - r, boxY);
+            maxX = Math.max(x + r, boxX + boxWidth);
+            maxY = Math.max(z + r, boxY + boxHeight);
+        }
+        
+        void addPieces(Set<Integer> pieces, int size) {
+            int col1 = Math.max(0, minX / 128), col2 = Math.min(size - 1, maxX / 128);
+            int row1 = Math.max(0, minY / 128), row2 = Math.min(size - 1, maxY / 128);
+            for (int col = col1; col <= col2; col++) {
+                for (int row = row1; row <= row2; row++) {
+                    pieces.add(col * size + (size - 1 - row));
+                }
+            }
+        }
+        
+        void draw(Graphics2D g, MarkerStyle s) {
+            g.drawImage(s.dot, x - s.dotSize / 2 - s.dotMargin, z - s.dotSize / 2 - s.dotMargin, null);
+            g.drawImage(label, boxX, boxY, null);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MarkerSprite)) return false;
+            MarkerSprite m = (MarkerSprite) o;
+            return x == m.x && z == m.z && name.equals(m.name);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + x) * 31 + z;
+        }
     }
     
     static class WallInfo {
@@ -712,5 +1309,8 @@ public class InGameMapWall {
         String imagePath;
         int baseX, baseY, baseZ;
         BlockFace facing;
+        int viewRadius;
+        // Names of players in range, main thread only
+        Set<String> viewers = new HashSet<>();
     }
 }
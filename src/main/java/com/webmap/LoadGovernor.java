@@ -0,0 +1,130 @@
+package com.webmap;
+
+import cn.nukkit.Server;
+
+/**
+ * Scales the plugin's main thread work to server health
+ * Once a second TPS and tick usage are sampled and mapped to a throttle level.
+ * A worse level applies at once; recovering goes back one level at a time and
+ * only after the server has stayed healthy for a while, so a single good
+ * second does not bring the full load back.
+ *
+ * Main thread only, apart from the read-only getters used by /api/stats.
+ */
+public class LoadGovernor {
+
+    public enum Throttle {
+        NORMAL(1.0, 1, 1.0),
+        REDUCED(0.5, 2, 0.5),
+        MINIMAL(0.2, 4, 0.2),
+        PAUSED(0, 0, 0);
+
+        // Share of the render slice, marker cycles that run (1 in n, 0 = none), share of the packet batch
+        final double renderShare;
+        final int markerEvery;
+        final double packetShare;
+
+        Throttle(double renderShare, int markerEvery, double packetShare) {
+            this.renderShare = renderShare;
+            this.markerEvery = markerEvery;
+            this.packetShare = packetShare;
+        }
+    }
+
+    public static class Settings {
+        public boolean enabled = true;
+        public double renderSliceMs = 15;
+        public double wallBuildSliceMs = 10;
+        public double reduceTps = 18;
+        public double minimalTps = 15;
+        public double pauseTps = 10;
+        // Percent of the 50 ms tick in use
+        public double reduceTickUsage = 80;
+        public int recoverSeconds = 10;
+    }
+
+    private final Settings settings;
+    private volatile Throttle throttle = Throttle.NORMAL;
+    private volatile float tps = 20;
+    private volatile float tickUsage = 0;
+    private int healthySamples;
+    private int markerCycle;
+
+    public LoadGovernor(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Called once a second from a main thread task
+     */
+    public void sample(Server server) {
+        tps = server.getTicksPerSecondAverage();
+        tickUsage = server.getTickUsageAverage();
+        if (!settings.enabled) return;
+
+        Throttle target;
+        if (tps < settings.pauseTps) target = Throttle.PAUSED;
+        else if (tps < settings.minimalTps) target = Throttle.MINIMAL;
+        else if (tps < settings.reduceTps || tickUsage > settings.reduceTickUsage) target = Throttle.REDUCED;
+        else target = Throttle.NORMAL;
+
+        if (target.ordinal() >= throttle.ordinal()) {
+            throttle = target;
+            healthySamples = 0;
+        } else if (++healthySamples >= settings.recoverSeconds) {
+            throttle = Throttle.values()[throttle.ordinal() - 1];
+            healthySamples = 0;
+        }
+    }
+
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Main thread time a render may use this tick, 0 while paused
+     */
+    public long renderBudgetNanos() {
+        return (long) (settings.renderSliceMs * throttle.renderShare * 1_000_000L);
+    }
+
+    /**
+     * Main thread time placing a new map wall may use this tick, 0 while paused
+     */
+    public long wallBuildBudgetNanos() {
+        return (long) (settings.wallBuildSliceMs * throttle.renderShare * 1_000_000L);
+    }
+
+    /**
+     * Main thread: whether this marker update cycle should run, called once per cycle
+     */
+    public boolean allowMarkerCycle() {
+        int every = throttle.markerEvery;
+        if (every == 0) return false;
+        return markerCycle++ % every == 0;
+    }
+
+    /**
+     * Packet work (count or bytes) allowed this tick out of the normal amount, 0 while paused
+     */
+    public int packetBatch(int normal) {
+        if (throttle == Throttle.PAUSED) return 0;
+        return Math.max(1, (int) (normal * throttle.packetShare));
+    }
+
+    /**
+     * Whether optional work (like opportunistic chunk renders) should be skipped entirely
+     */
+    public boolean isBehind() {
+        return throttle.ordinal() >= Throttle.MINIMAL.ordinal();
+    }
+
+    public void appendStats(StringBuilder json) {
+        json.append("{\"level\":\"").append(throttle.name().toLowerCase()).append("\"")
+            .append(",\"enabled\":").append(settings.enabled)
+            .append(",\"tps\":").append(Math.round(tps * 10) / 10.0)
+            .append(",\"tickUsage\":").append(Math.round(tickUsage * 10) / 10.0)
+            .append(",\"renderSliceMs\":").append(renderBudgetNanos() / 1_000_000.0)
+            .append("}");
+    }
+}
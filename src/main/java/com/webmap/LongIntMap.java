@@ -0,0 +1,128 @@
+package com.webmap;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing long -> int hash map without boxing
+ * Linear probing, power of two table, Long.MIN_VALUE is reserved as the empty slot.
+ * Not thread safe.
+ */
+public class LongIntMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    public interface Visitor {
+        void visit(long key, int value);
+    }
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+
+    public LongIntMap(int expected) {
+        int cap = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        keys = new long[cap];
+        values = new int[cap];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @return the value, or 0 if absent
+     */
+    public int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == EMPTY) return 0;
+        }
+    }
+
+    public void put(long key, int value) {
+        // slot() may grow the table, index the new values array
+        int i = slot(key);
+        values[i] = value;
+    }
+
+    /**
+     * Add to the value of a key (absent counts as 0), saturating at Integer.MAX_VALUE
+     *
+     * @return the new value
+     */
+    public int add(long key, int delta) {
+        int i = slot(key);
+        long sum = (long) values[i] + delta;
+        values[i] = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, sum));
+        return values[i];
+    }
+
+    /**
+     * @return the removed value, or 0 if absent
+     */
+    public int remove(long key) {
+        if (key == EMPTY) return 0;
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) return 0;
+            i = (i + 1) & mask;
+        }
+        int value = values[i];
+        // Move later keys of the probe run into the hole when it lies between their home and them
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) visitor.visit(keys[i], values[i]);
+        }
+    }
+
+    private int slot(long key) {
+        if (key == EMPTY) throw new IllegalArgumentException("Reserved key");
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) return i;
+            i = (i + 1) & mask;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            grow();
+            return slot(key);
+        }
+        keys[i] = key;
+        values[i] = 0;
+        size++;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) values[slot(oldKeys[i])] = oldValues[i];
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
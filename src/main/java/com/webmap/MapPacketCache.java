@@ -0,0 +1,122 @@
+package com.webmap;
+
+import cn.nukkit.network.protocol.ClientboundMapItemDataPacket;
+import cn.nukkit.network.protocol.DataPacket;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded map item packets, one per map id
+ * Wall pieces are never modified once stored, so the piece instance is the
+ * content version: the same piece sent to fifty players is encoded once and
+ * the same packet (already encoded, Nukkit does not encode it again) goes to
+ * all of them. Least recently used packets are dropped above the size limit
+ * and encoded again when needed. Thread safe, pieces can be encoded ahead on
+ * the async wall thread.
+ *
+ * Besides the whole piece, each map id keeps one packet updating only a part
+ * of it; all players near a wall get the same part after a marker moved.
+ */
+public class MapPacketCache {
+
+    // Used when the encoded size is unknown
+    private static final int PIECE_BYTES_ESTIMATE = 128 * 128 * 4;
+
+    private static class Entry {
+        final MapPieceStore.Piece piece;
+        final Rectangle rect;
+        final DataPacket packet;
+        final int size;
+
+        Entry(MapPieceStore.Piece piece, Rectangle rect, DataPacket packet, int size) {
+            this.piece = piece;
+            this.rect = rect;
+            this.packet = packet;
+            this.size = size;
+        }
+    }
+
+    private final long maxBytes;
+    // Key is mapId << 1, plus 1 for the partial update
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits, encodes;
+
+    public MapPacketCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Encoded packet showing the piece on the map, built only if this piece was not encoded before
+     */
+    public DataPacket get(long mapId, MapPieceStore.Piece piece) {
+        return get(mapId, piece, null);
+    }
+
+    /**
+     * Encoded packet showing a rectangle of the piece at its place on the map, null for the whole piece
+     */
+    public DataPacket get(long mapId, MapPieceStore.Piece piece, Rectangle rect) {
+        long key = (mapId << 1) | (rect != null ? 1 : 0);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null && e.piece == piece && (rect == null || rect.equals(e.rect))) {
+                hits++;
+                return e.packet;
+            }
+        }
+
+        // Encode outside the lock, the wall thread may be encoding other pieces
+        ClientboundMapItemDataPacket pk = new ClientboundMapItemDataPacket();
+        pk.mapId = mapId;
+        pk.update = 2;
+        pk.scale = 0;
+        if (rect == null) {
+            pk.width = 128;
+            pk.height = 128;
+            pk.offsetX = 0;
+            pk.offsetZ = 0;
+            pk.image = piece.toImage();
+        } else {
+            pk.width = rect.width;
+            pk.height = rect.height;
+            pk.offsetX = rect.x;
+            pk.offsetZ = rect.y;
+            pk.colors = piece.colors(rect);
+        }
+        pk.tryEncode();
+        int size = encodedSize(pk);
+
+        synchronized (this) {
+            encodes++;
+            if (size > maxBytes) return pk;
+            Entry old = entries.put(key, new Entry(piece, rect, pk, size));
+            if (old != null) bytes -= old.size;
+            bytes += size;
+            for (Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator(); bytes > maxBytes && it.hasNext(); ) {
+                bytes -= it.next().getValue().size;
+                it.remove();
+            }
+        }
+        return pk;
+    }
+
+    /**
+     * Bytes of an encoded packet, estimated if the buffer is not available
+     */
+    public static int encodedSize(DataPacket packet) {
+        byte[] buffer = packet.getBuffer();
+        return buffer != null ? buffer.length : PIECE_BYTES_ESTIMATE;
+    }
+
+    public synchronized void appendStats(StringBuilder json) {
+        json.append("{\"entries\":").append(entries.size())
+            .append(",\"bytes\":").append(bytes)
+            .append(",\"hits\":").append(hits)
+            .append(",\"encodes\":").append(encodes)
+            .append("}");
+    }
+}
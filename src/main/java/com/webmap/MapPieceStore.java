@@ -0,0 +1,217 @@
+package com.webmap;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Pieces shown on map walls, by map id, within a memory limit
+ * Pixels are kept as packed RGB bytes (RGBA only if the piece has transparency)
+ * instead of 128x128 int images. Above the limit the least recently used
+ * pieces are dropped; the wall rebuilds a dropped piece from its base piece in
+ * the wall piece file when someone needs it again, so pieces of walls nobody
+ * is near leave memory first. Thread safe.
+ */
+public class MapPieceStore {
+
+    /**
+     * Immutable piece pixels; the instance identifies the content, like an image did before
+     */
+    public static final class Piece {
+        private final byte[] pixels;
+        private final boolean alpha;
+
+        private Piece(byte[] pixels, boolean alpha) {
+            this.pixels = pixels;
+            this.alpha = alpha;
+        }
+
+        public static Piece of(BufferedImage image) {
+            int[] argb = image.getRGB(0, 0, 128, 128, null, 0, 128);
+            boolean alpha = false;
+            for (int c : argb) {
+                if ((c >>> 24) != 0xFF) {
+                    alpha = true;
+                    break;
+                }
+            }
+            byte[] pixels = new byte[argb.length * (alpha ? 4 : 3)];
+            int p = 0;
+            for (int c : argb) {
+                pixels[p++] = (byte) (c >> 16);
+                pixels[p++] = (byte) (c >> 8);
+                pixels[p++] = (byte) c;
+                if (alpha) pixels[p++] = (byte) (c >>> 24);
+            }
+            return new Piece(pixels, alpha);
+        }
+
+        public BufferedImage toImage() {
+            int[] argb = new int[128 * 128];
+            int p = 0;
+            for (int i = 0; i < argb.length; i++) {
+                int rgb = ((pixels[p] & 0xFF) << 16) | ((pixels[p + 1] & 0xFF) << 8) | (pixels[p + 2] & 0xFF);
+                int a = alpha ? pixels[p + 3] & 0xFF : 0xFF;
+                argb[i] = (a << 24) | rgb;
+                p += alpha ? 4 : 3;
+            }
+            BufferedImage image = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
+            image.setRGB(0, 0, 128, 128, argb, 0, 128);
+            return image;
+        }
+
+        public int bytes() {
+            return pixels.length;
+        }
+
+        /**
+         * Smallest rectangle in which two pieces differ, null if they are equal
+         */
+        public static Rectangle changedRect(Piece a, Piece b) {
+            if (a.alpha != b.alpha) return new Rectangle(0, 0, 128, 128);
+            int stride = a.alpha ? 4 : 3;
+            int row = 128 * stride;
+            int minX = 128, minY = 128, maxX = -1, maxY = -1;
+            for (int y = 0; y < 128; y++) {
+                int start = y * row;
+                if (Arrays.equals(a.pixels, start, start + row, b.pixels, start, start + row)) continue;
+                if (minY == 128) minY = y;
+                maxY = y;
+                for (int x = 0; x < 128; x++) {
+                    int p = start + x * stride;
+                    if (Arrays.equals(a.pixels, p, p + stride, b.pixels, p, p + stride)) continue;
+                    if (x < minX) minX = x;
+                    if (x > maxX) maxX = x;
+                }
+            }
+            if (maxY < 0) return null;
+            return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        }
+
+        /**
+         * Colors of a rectangle row by row, packed the way map packets carry them (ABGR)
+         */
+        public int[] colors(Rectangle rect) {
+            int stride = alpha ? 4 : 3;
+            int[] colors = new int[rect.width * rect.height];
+            int i = 0;
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                for (int x = rect.x; x < rect.x + rect.width; x++) {
+                    int p = (y * 128 + x) * stride;
+                    int a = alpha ? pixels[p + 3] & 0xFF : 0xFF;
+                    colors[i++] = (pixels[p] & 0xFF) | ((pixels[p + 1] & 0xFF) << 8)
+                                | ((pixels[p + 2] & 0xFF) << 16) | (a << 24);
+                }
+            }
+            return colors;
+        }
+    }
+
+    private final long maxBytes;
+    // Map id -> 1-based slot
+    private final LongIntMap index = new LongIntMap(256);
+    // Slots, with a least recently used list through prev/next (0 = none)
+    private long[] keys = new long[64];
+    private Piece[] pieces = new Piece[64];
+    private int[] prev = new int[64];
+    private int[] next = new int[64];
+    private int head, tail;
+    private int slotCount;
+    private int[] free = new int[16];
+    private int freeCount;
+
+    private long bytes;
+    private long hits, misses, evictions;
+
+    public MapPieceStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the piece, or null if it was never stored or has been dropped
+     */
+    public synchronized Piece get(long mapId) {
+        int slot = index.get(mapId);
+        if (slot == 0) {
+            misses++;
+            return null;
+        }
+        hits++;
+        unlink(slot);
+        linkFirst(slot);
+        return pieces[slot];
+    }
+
+    /**
+     * Like get, but without counting as a use
+     */
+    public synchronized Piece peek(long mapId) {
+        int slot = index.get(mapId);
+        return slot == 0 ? null : pieces[slot];
+    }
+
+    public synchronized void put(long mapId, Piece piece) {
+        int slot = index.get(mapId);
+        if (slot != 0) {
+            bytes -= pieces[slot].bytes();
+            unlink(slot);
+        } else {
+            slot = freeCount > 0 ? free[--freeCount] : ++slotCount;
+            if (slot >= keys.length) grow();
+            keys[slot] = mapId;
+            index.put(mapId, slot);
+        }
+        pieces[slot] = piece;
+        bytes += piece.bytes();
+        linkFirst(slot);
+
+        while (bytes > maxBytes && tail != 0) {
+            evictions++;
+            remove(keys[tail]);
+        }
+    }
+
+    public synchronized void remove(long mapId) {
+        int slot = index.remove(mapId);
+        if (slot == 0) return;
+        unlink(slot);
+        bytes -= pieces[slot].bytes();
+        pieces[slot] = null;
+        if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = slot;
+    }
+
+    public synchronized void appendStats(StringBuilder json) {
+        json.append("{\"pieces\":").append(index.size())
+            .append(",\"bytes\":").append(bytes)
+            .append(",\"maxBytes\":").append(maxBytes)
+            .append(",\"hits\":").append(hits)
+            .append(",\"misses\":").append(misses)
+            .append(",\"evictions\":").append(evictions)
+            .append("}");
+    }
+
+    private void linkFirst(int slot) {
+        prev[slot] = 0;
+        next[slot] = head;
+        if (head != 0) prev[head] = slot;
+        head = slot;
+        if (tail == 0) tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (prev[slot] != 0) next[prev[slot]] = next[slot];
+        else head = next[slot];
+        if (next[slot] != 0) prev[next[slot]] = prev[slot];
+        else tail = prev[slot];
+        prev[slot] = next[slot] = 0;
+    }
+
+    private void grow() {
+        int n = keys.length * 2;
+        keys = Arrays.copyOf(keys, n);
+        pieces = Arrays.copyOf(pieces, n);
+        prev = Arrays.copyOf(prev, n);
+        next = Arrays.copyOf(next, n);
+    }
+}
@@ -3,9 +3,12 @@ package com.webmap;
 import cn.nukkit.level.Level;
 import cn.nukkit.level.format.FullChunk;
 import cn.nukkit.level.format.LevelProvider;
+import cn.nukkit.scheduler.AsyncTask;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.*;
 
@@ -16,6 +19,9 @@ public class MapRenderer {
     // Pixels per block (higher = better quality)
     private static final int PIXELS_PER_BLOCK = 12;
     
+    // Chunks this close (in chunks) to a player, spawn or recent web view are drawn first
+    private static final int HOT_RADIUS = 8;
+    
     public MapRenderer(WebMapPlugin plugin) {
         this.plugin = plugin;
     }
@@ -27,6 +33,9 @@ public class MapRenderer {
     public static class RenderResult {
         public BufferedImage image;
         public int minBlockX, maxBlockX, minBlockZ, maxBlockZ;
+        // Column data of this render (temporary file), null if it could not be written
+        public ColumnStore columns;
+        public double pixelsPerBlock;
         
         public RenderResult(BufferedImage img, int minX, int maxX, int minZ, int maxZ) {
             this.image = img;
@@ -38,216 +47,423 @@ public class MapRenderer {
     }
     
     public RenderResult renderRegion(Level level, int centerX, int centerZ, int radius) {
+        return startRegion(level, centerX, centerZ, radius).runToEnd();
+    }
+    
+    public RenderResult renderLevelWithInfo(Level level) {
+        return startFull(level).runToEnd();
+    }
+    
+    /**
+     * Square region render around a center, run it with Job.step
+     */
+    public Job startRegion(Level level, int centerX, int centerZ, int radius) {
         plugin.getLogger().info("=== Rendering region: center(" + centerX + "," + centerZ + ") radius=" + radius + " ===");
         
-        int minBlockX = centerX - radius;
-        int maxBlockX = centerX + radius;
-        int minBlockZ = centerZ - radius;
-        int maxBlockZ = centerZ + radius;
+        Job job = new Job(level, true);
+        job.regionBounds = new int[] {centerX - radius, centerX + radius, centerZ - radius, centerZ + radius};
+        return job;
+    }
+    
+    /**
+     * Render of every chunk that can be found, run it with Job.step
+     */
+    public Job startFull(Level level) {
+        plugin.getLogger().info("=== Starting world scan: " + level.getName() + " ===");
+        return new Job(level, false);
+    }
+    
+    /**
+     * A render split into slices of main thread time
+     * Chunk discovery (full renders only) and drawing both stop once the slice
+     * is used up and continue where they left off on the next call, so a large
+     * world never holds a tick for long. Work that does not need the level
+     * (listing known chunks, allocating the image, ordering the chunks, creating
+     * the column data) runs on an async task; step returns false until it is
+     * done. Main thread only.
+     */
+    public class Job {
+        private static final int MAX_SCAN_RADIUS = 150;
+        private static final int MAX_HOT_SPOTS = 32;
         
-        int minCX = minBlockX >> 4;
-        int maxCX = maxBlockX >> 4;
-        int minCZ = minBlockZ >> 4;
-        int maxCZ = maxBlockZ >> 4;
+        private final Level level;
+        private final boolean region;
+        // Persistent, so chunks found by earlier renders are not searched for again
+        private final ChunkCoverage coverage;
+        private final int knownBefore;
+        // Region renders: block bounds minX, maxX, minZ, maxZ
+        private int[] regionBounds;
         
-        int chunksX = maxCX - minCX + 1;
-        int chunksZ = maxCZ - minCZ + 1;
+        // Preparation on an async task (inline when run to the end in one call)
+        private boolean inline;
+        private volatile boolean working;
+        private volatile RuntimeException failure;
+        private volatile boolean aborted;
         
-        plugin.getLogger().info("Region chunks: " + chunksX + " x " + chunksZ);
+        // Discovery: rings around each center until 10 in a row are empty
+        private long[] centers;
+        private int centerIndex, ring, emptyRings, foundByScan;
         
-        int imageWidth = (radius * 2) * PIXELS_PER_BLOCK;
-        int imageHeight = (radius * 2) * PIXELS_PER_BLOCK;
+        // Drawing
+        private long[] keys;
+        private int next, rendered;
+        private BufferedImage image;
+        private ColumnStore columnStore;
+        private WebMapPlugin.MapInfo bounds;
+        private int minCX, minCZ;
+        private int version;
+        // Keys near players, spawn and web views come first; their columns are kept to publish early
+        private int hotCount;
+        private Map<Long, long[]> hotColumns;
+        private RenderResult result;
         
-        int maxSize = 16384;
-        double scale = 1.0;
-        if (imageWidth > maxSize || imageHeight > maxSize) {
-            scale = (double) maxSize / Math.max(imageWidth, imageHeight);
-            imageWidth = (int)(imageWidth * scale);
-            imageHeight = (int)(imageHeight * scale);
+        private Job(Level level, boolean region) {
+            this.level = level;
+            this.region = region;
+            this.coverage = plugin.getCoverage(level.getName());
+            this.knownBefore = coverage.size();
         }
         
-        plugin.getLogger().info("Image size: " + imageWidth + "x" + imageHeight);
+        public String getWorld() {
+            return level.getName();
+        }
         
-        BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = image.createGraphics();
-        g.setColor(new Color(25, 50, 100));
-        g.fillRect(0, 0, imageWidth, imageHeight);
-        g.dispose();
+        public boolean isDiscovering() {
+            return keys == null;
+        }
         
-        int rendered = 0;
-        int total = chunksX * chunksZ;
-        final double pixelsPerBlock = PIXELS_PER_BLOCK * scale;
+        public int getDone() {
+            return next;
+        }
         
-        for (int cx = minCX; cx <= maxCX; cx++) {
-            for (int cz = minCZ; cz <= maxCZ; cz++) {
-                try {
-                    level.loadChunk(cx, cz, false);
-                    FullChunk chunk = level.getChunk(cx, cz);
-                    
-                    if (chunk != null) {
-                        int chunkBlockX = cx * 16;
-                        int chunkBlockZ = cz * 16;
-                        
-                        for (int bx = 0; bx < 16; bx++) {
-                            for (int bz = 0; bz < 16; bz++) {
-                                int worldX = chunkBlockX + bx;
-                                int worldZ = chunkBlockZ + bz;
-                                
-                                if (worldX < minBlockX || worldX >= maxBlockX ||
-                                    worldZ < minBlockZ || worldZ >= maxBlockZ) continue;
-                                
-                                int imgX = (int)((worldX - minBlockX) * pixelsPerBlock);
-                                int imgZ = (int)((worldZ - minBlockZ) * pixelsPerBlock);
-                                
-                                if (imgX < 0 || imgX >= imageWidth || imgZ < 0 || imgZ >= imageHeight) continue;
-                                
-                                int height = chunk.getHighestBlockAt(bx, bz);
-                                int blockId = 0, blockData = 0;
-                                
-                                for (int y = height; y >= 0; y--) {
-                                    blockId = chunk.getBlockId(bx, y, bz);
-                                    if (blockId != 0 && !isTransparent(blockId)) {
-                                        blockData = chunk.getBlockData(bx, y, bz);
-                                        height = y;
-                                        break;
-                                    }
-                                }
-                                
-                                Color c = getBlockColor(blockId, blockData);
-                                int rgb = applyShading(c, height, bx, bz, chunk).getRGB();
-                                
-                                int pixelSize = Math.max(1, (int)Math.ceil(pixelsPerBlock));
-                                for (int px = 0; px < pixelSize && imgX + px < imageWidth; px++) {
-                                    for (int pz = 0; pz < pixelSize && imgZ + pz < imageHeight; pz++) {
-                                        image.setRGB(imgX + px, imgZ + pz, rgb);
-                                    }
-                                }
-                            }
-                        }
-                        rendered++;
-                    }
-                } catch (Exception e) {}
-                
-                if ((rendered % 500) == 0 && rendered > 0) {
-                    plugin.getLogger().info("Progress: " + rendered + "/" + total);
+        public int getTotal() {
+            return keys == null ? 0 : keys.length;
+        }
+        
+        /**
+         * Work for up to the given time. Always makes some progress.
+         *
+         * @return true once the render is complete, see getResult
+         */
+        public boolean step(long budgetNanos) {
+            long start = System.nanoTime();
+            if (result != null) return true;
+            if (working) return false;
+            if (failure != null) throw failure;
+            
+            if (keys == null) {
+                if (region) {
+                    prepareRegion();
+                    return keys != null && step(budgetNanos - (System.nanoTime() - start));
+                }
+                if (centers == null) {
+                    collectKnownChunks();
+                    if (working || centers == null) return false;
+                }
+                while (centerIndex < centers.length) {
+                    scanNextRing();
+                    if (System.nanoTime() - start >= budgetNanos) return false;
                 }
+                plugin.getLogger().info("Found " + foundByScan + " chunks via scan");
+                prepareFull();
+                return keys != null && step(budgetNanos - (System.nanoTime() - start));
             }
+            
+            while (next < keys.length) {
+                long key = keys[next++];
+                renderChunk((int)(key >> 32), (int) key);
+                if (next % 1000 == 0) {
+                    plugin.getLogger().info("Progress: " + next + "/" + keys.length);
+                }
+                if (next == hotCount && hotColumns != null) return false;
+                if (next < keys.length && System.nanoTime() - start >= budgetNanos) return false;
+            }
+            
+            plugin.getLogger().info("=== Done: " + rendered + " chunks rendered ===");
+            result = new RenderResult(image, bounds.blockMinX, bounds.blockMaxX, bounds.blockMinZ, bounds.blockMaxZ);
+            result.columns = columnStore;
+            result.pixelsPerBlock = bounds.pixelsPerBlock;
+            return true;
         }
         
-        plugin.getLogger().info("=== Region render complete: " + rendered + " chunks ===");
-        return new RenderResult(image, minBlockX, maxBlockX, minBlockZ, maxBlockZ);
-    }
-    
-    public RenderResult renderLevelWithInfo(Level level) {
-        plugin.getLogger().info("=== Starting world scan: " + level.getName() + " ===");
+        public RenderResult runToEnd() {
+            inline = true;
+            while (!step(Long.MAX_VALUE)) {}
+            return result;
+        }
+        
+        public RenderResult getResult() {
+            return result;
+        }
         
-        Set<Long> allChunkKeys = new HashSet<>();
+        /**
+         * Columns of the chunks near hot spots once all of them are drawn, handed out once
+         */
+        public Map<Long, long[]> takeHotColumns() {
+            if (hotColumns == null || next < hotCount) return null;
+            Map<Long, long[]> hot = hotColumns;
+            hotColumns = null;
+            return hot;
+        }
         
-        try {
-            Map<Long, ? extends FullChunk> memChunks = level.getChunks();
-            for (Long key : memChunks.keySet()) {
-                allChunkKeys.add(key);
+        /**
+         * Give up, releasing the column data written so far
+         */
+        public void abort() {
+            aborted = true;
+            if (result == null && columnStore != null) {
+                columnStore.close();
+                new File(plugin.getMapFolder(), level.getName() + ".columns.tmp").delete();
             }
-            plugin.getLogger().info("Memory chunks: " + memChunks.size());
-        } catch (Exception e) {
-            plugin.getLogger().warning("Memory scan error: " + e.getMessage());
         }
         
-        try {
-            LevelProvider provider = level.getProvider();
-            if (provider != null) {
-                scanProviderChunks(provider, allChunkKeys);
+        private void collectKnownChunks() {
+            try {
+                Map<Long, ? extends FullChunk> memChunks = level.getChunks();
+                for (Long key : memChunks.keySet()) {
+                    coverage.markExists((int)(key >> 32), key.intValue());
+                }
+                plugin.getLogger().info("Memory chunks: " + memChunks.size());
+            } catch (Exception e) {
+                plugin.getLogger().warning("Memory scan error: " + e.getMessage());
             }
-        } catch (Exception e) {
-            plugin.getLogger().warning("Provider scan error: " + e.getMessage());
+            
+            try {
+                LevelProvider provider = level.getProvider();
+                if (provider != null) {
+                    scanProviderChunks(provider, coverage);
+                }
+            } catch (Exception e) {
+                plugin.getLogger().warning("Provider scan error: " + e.getMessage());
+            }
+            
+            Collection<cn.nukkit.Player> players = level.getPlayers().values();
+            long[] starts = new long[2 + players.size()];
+            int n = 0;
+            starts[n++] = chunkKey(level.getSpawnLocation().getFloorX() >> 4, level.getSpawnLocation().getFloorZ() >> 4);
+            starts[n++] = chunkKey(0, 0);
+            for (cn.nukkit.Player p : players) {
+                if (n == starts.length) break;
+                starts[n++] = chunkKey(p.getFloorX() >> 4, p.getFloorZ() >> 4);
+            }
+            int startCount = n;
+            
+            // Every known chunk is a center too, listing them is not main thread work
+            runOffThread(() -> {
+                long[] known = coverage.keys();
+                long[] all = Arrays.copyOf(starts, startCount + known.length);
+                System.arraycopy(known, 0, all, startCount, known.length);
+                plugin.getLogger().info("Scanning from " + all.length + " points");
+                centers = all;
+            });
         }
         
-        exhaustiveScan(level, allChunkKeys);
-        
-        plugin.getLogger().info("Total chunks found: " + allChunkKeys.size());
-        
-        if (allChunkKeys.isEmpty()) {
-            int cx = level.getSpawnLocation().getFloorX() >> 4;
-            int cz = level.getSpawnLocation().getFloorZ() >> 4;
-            for (int dx = -4; dx <= 4; dx++) {
-                for (int dz = -4; dz <= 4; dz++) {
-                    allChunkKeys.add(chunkKey(cx + dx, cz + dz));
+        private void scanNextRing() {
+            int centerX = (int)(centers[centerIndex] >> 32);
+            int centerZ = (int) centers[centerIndex];
+            int r = ring;
+            int found = 0;
+            
+            for (int dx = -r; dx <= r; dx++) {
+                for (int dz = -r; dz <= r; dz++) {
+                    if (r > 0 && Math.abs(dx) != r && Math.abs(dz) != r) continue;
+                    
+                    int cx = centerX + dx;
+                    int cz = centerZ + dz;
+                    
+                    if (coverage.exists(cx, cz)) continue;
+                    
+                    try {
+                        if (level.loadChunk(cx, cz, false)) {
+                            FullChunk chunk = level.getChunk(cx, cz);
+                            if (chunk != null) {
+                                coverage.markExists(cx, cz);
+                                found++;
+                                foundByScan++;
+                            }
+                        }
+                    } catch (Exception ignored) {}
                 }
             }
+            
+            emptyRings = (found == 0) ? emptyRings + 1 : 0;
+            ring++;
+            if (ring > MAX_SCAN_RADIUS || emptyRings >= 10) {
+                centerIndex++;
+                ring = 0;
+                emptyRings = 0;
+            }
         }
         
-        int minCX = Integer.MAX_VALUE, maxCX = Integer.MIN_VALUE;
-        int minCZ = Integer.MAX_VALUE, maxCZ = Integer.MIN_VALUE;
-        
-        for (Long key : allChunkKeys) {
-            int cx = (int)(key >> 32);
-            int cz = key.intValue();
-            minCX = Math.min(minCX, cx);
-            maxCX = Math.max(maxCX, cx);
-            minCZ = Math.min(minCZ, cz);
-            maxCZ = Math.max(maxCZ, cz);
+        private void prepareFull() {
+            plugin.getLogger().info("Total chunks found: " + coverage.size() + " (" + (coverage.size() - knownBefore) + " new)");
+            
+            if (coverage.size() == 0) {
+                int cx = level.getSpawnLocation().getFloorX() >> 4;
+                int cz = level.getSpawnLocation().getFloorZ() >> 4;
+                for (int dx = -4; dx <= 4; dx++) {
+                    for (int dz = -4; dz <= 4; dz++) {
+                        coverage.markExists(cx + dx, cz + dz);
+                    }
+                }
+            }
+            
+            long[] spots = hotSpots();
+            runOffThread(() -> prepareFull(spots));
         }
         
-        int blockMinX = minCX * 16;
-        int blockMaxX = (maxCX + 1) * 16;
-        int blockMinZ = minCZ * 16;
-        int blockMaxZ = (maxCZ + 1) * 16;
-        
-        plugin.getLogger().info("Bounds: X[" + blockMinX + " to " + blockMaxX + "] Z[" + blockMinZ + " to " + blockMaxZ + "]");
-        
-        int chunksX = maxCX - minCX + 1;
-        int chunksZ = maxCZ - minCZ + 1;
-        int imageWidth = chunksX * 16 * PIXELS_PER_BLOCK;
-        int imageHeight = chunksZ * 16 * PIXELS_PER_BLOCK;
+        private void prepareRegion() {
+            long[] spots = hotSpots();
+            int[] b = regionBounds;
+            runOffThread(() -> {
+                int minCX = b[0] >> 4;
+                int maxCX = b[1] >> 4;
+                int minCZ = b[2] >> 4;
+                int maxCZ = b[3] >> 4;
+                
+                long[] keys = new long[(maxCX - minCX + 1) * (maxCZ - minCZ + 1)];
+                int n = 0;
+                for (int cx = minCX; cx <= maxCX; cx++) {
+                    for (int cz = minCZ; cz <= maxCZ; cz++) {
+                        keys[n++] = chunkKey(cx, cz);
+                    }
+                }
+                prepare(keys, b[0], b[1], b[2], b[3], spots);
+            });
+        }
         
-        double scale = 1.0;
-        int maxSize = 16384;
-        if (imageWidth > maxSize || imageHeight > maxSize) {
-            scale = Math.min((double)maxSize / imageWidth, (double)maxSize / imageHeight);
-            imageWidth = (int)(imageWidth * scale);
-            imageHeight = (int)(imageHeight * scale);
-            plugin.getLogger().info("Scaled to: " + imageWidth + "x" + imageHeight);
+        private void prepareFull(long[] spots) {
+            long[] allChunkKeys = coverage.keys();
+            int minCX = Integer.MAX_VALUE, maxCX = Integer.MIN_VALUE;
+            int minCZ = Integer.MAX_VALUE, maxCZ = Integer.MIN_VALUE;
+            
+            for (long key : allChunkKeys) {
+                int cx = (int)(key >> 32);
+                int cz = (int) key;
+                minCX = Math.min(minCX, cx);
+                maxCX = Math.max(maxCX, cx);
+                minCZ = Math.min(minCZ, cz);
+                maxCZ = Math.max(maxCZ, cz);
+            }
+            
+            prepare(allChunkKeys, minCX * 16, (maxCX + 1) * 16, minCZ * 16, (maxCZ + 1) * 16, spots);
         }
         
-        plugin.getLogger().info("Image: " + imageWidth + "x" + imageHeight + " pixels");
+        /**
+         * Async: allocate the image and column data for a block rectangle and order the chunks
+         * Drawing starts on the first step after this is done.
+         */
+        private void prepare(long[] keys, int blockMinX, int blockMaxX, int blockMinZ, int blockMaxZ, long[] spots) {
+            plugin.getLogger().info("Bounds: X[" + blockMinX + " to " + blockMaxX + "] Z[" + blockMinZ + " to " + blockMaxZ + "]");
+            
+            minCX = blockMinX >> 4;
+            minCZ = blockMinZ >> 4;
+            int chunksX = ((blockMaxX - 1) >> 4) - minCX + 1;
+            int chunksZ = ((blockMaxZ - 1) >> 4) - minCZ + 1;
+            plugin.getLogger().info("Chunks: " + chunksX + " x " + chunksZ);
+            
+            int imageWidth = (blockMaxX - blockMinX) * PIXELS_PER_BLOCK;
+            int imageHeight = (blockMaxZ - blockMinZ) * PIXELS_PER_BLOCK;
+            
+            double scale = 1.0;
+            int maxSize = 16384;
+            if (imageWidth > maxSize || imageHeight > maxSize) {
+                scale = Math.min((double)maxSize / imageWidth, (double)maxSize / imageHeight);
+                imageWidth = (int)(imageWidth * scale);
+                imageHeight = (int)(imageHeight * scale);
+                plugin.getLogger().info("Scaled to: " + imageWidth + "x" + imageHeight);
+            }
+            
+            plugin.getLogger().info("Image: " + imageWidth + "x" + imageHeight + " pixels");
+            
+            image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(new Color(25, 50, 100));
+            g.fillRect(0, 0, imageWidth, imageHeight);
+            g.dispose();
+            
+            bounds = new WebMapPlugin.MapInfo();
+            bounds.blockMinX = blockMinX;
+            bounds.blockMaxX = blockMaxX;
+            bounds.blockMinZ = blockMinZ;
+            bounds.blockMaxZ = blockMaxZ;
+            bounds.pixelsPerBlock = PIXELS_PER_BLOCK * scale;
+            
+            hotCount = orderByPriority(keys, spots);
+            if (hotCount > 0 && hotCount < keys.length) hotColumns = new HashMap<>();
+            plugin.getLogger().info("Near " + spots.length + " hot spots: " + hotCount + " chunks");
+            
+            columnStore = createColumnStore(level, minCX, minCZ, chunksX, chunksZ);
+            version = coverage.beginRender();
+            // Set last, step starts drawing once keys are there
+            this.keys = keys;
+            if (aborted) abort();
+        }
         
-        BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = image.createGraphics();
-        g.setColor(new Color(25, 50, 100));
-        g.fillRect(0, 0, imageWidth, imageHeight);
-        g.dispose();
+        /**
+         * Run preparation work off the main thread, step waits for it
+         */
+        private void runOffThread(Runnable work) {
+            if (inline) {
+                work.run();
+                return;
+            }
+            working = true;
+            plugin.getServer().getScheduler().scheduleAsyncTask(plugin, new AsyncTask() {
+                @Override
+                public void onRun() {
+                    try {
+                        work.run();
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    } finally {
+                        working = false;
+                    }
+                }
+            });
+        }
         
-        int rendered = 0;
-        int total = allChunkKeys.size();
-        final double pixelsPerBlock = PIXELS_PER_BLOCK * scale;
-        final int fMinCX = minCX, fMinCZ = minCZ;
+        private long[] hotSpots() {
+            long[] views = plugin.getViewTracker().recent(level.getName(), MAX_HOT_SPOTS / 2);
+            Collection<cn.nukkit.Player> players = level.getPlayers().values();
+            long[] spots = new long[1 + players.size() + views.length];
+            int n = 0;
+            spots[n++] = chunkKey(level.getSpawnLocation().getFloorX() >> 4, level.getSpawnLocation().getFloorZ() >> 4);
+            for (cn.nukkit.Player p : players) {
+                if (n == MAX_HOT_SPOTS - views.length) break;
+                spots[n++] = chunkKey(p.getFloorX() >> 4, p.getFloorZ() >> 4);
+            }
+            System.arraycopy(views, 0, spots, n, views.length);
+            return Arrays.copyOf(spots, n + views.length);
+        }
         
-        for (Long key : allChunkKeys) {
-            int cx = (int)(key >> 32);
-            int cz = key.intValue();
-            
+        private void renderChunk(int cx, int cz) {
             try {
                 level.loadChunk(cx, cz, false);
                 FullChunk chunk = level.getChunk(cx, cz);
                 
                 if (chunk != null) {
-                    int baseImgX = (int)((cx - fMinCX) * 16 * pixelsPerBlock);
-                    int baseImgZ = (int)((cz - fMinCZ) * 16 * pixelsPerBlock);
-                    renderChunkHQ(image, chunk, baseImgX, baseImgZ, pixelsPerBlock);
+                    long[] columns = scanChunk(chunk);
+                    columnStore = storeColumns(columnStore, cx, cz, columns);
+                    if (region) {
+                        // Region edges need not be chunk aligned
+                        paintChunk(image, columns, cx, cz, bounds);
+                    } else {
+                        int baseImgX = (int)((cx - minCX) * 16 * bounds.pixelsPerBlock);
+                        int baseImgZ = (int)((cz - minCZ) * 16 * bounds.pixelsPerBlock);
+                        renderChunkHQ(image, columns, baseImgX, baseImgZ, bounds.pixelsPerBlock);
+                    }
+                    coverage.markRendered(cx, cz, version);
                     rendered++;
-                }
-                
-                if (rendered % 1000 == 0) {
-                    plugin.getLogger().info("Progress: " + rendered + "/" + total);
+                    if (hotColumns != null && next <= hotCount) hotColumns.put(chunkKey(cx, cz), columns);
+                } else {
+                    coverage.forget(cx, cz);
                 }
             } catch (Exception e) {}
         }
-        
-        plugin.getLogger().info("=== Done: " + rendered + " chunks rendered ===");
-        return new RenderResult(image, blockMinX, blockMaxX, blockMinZ, blockMaxZ);
     }
     
-    private void renderChunkHQ(BufferedImage img, FullChunk chunk, int baseX, int baseZ, double pixelsPerBlock) {
+    private void renderChunkHQ(BufferedImage img, long[] columns, int baseX, int baseZ, double pixelsPerBlock) {
         int w = img.getWidth(), h = img.getHeight();
         int pixelSize = Math.max(1, (int)Math.ceil(pixelsPerBlock));
         
@@ -257,6 +473,54 @@ public class MapRenderer {
                 int imgZ = baseZ + (int)(z * pixelsPerBlock);
                 if (imgX < 0 || imgX >= w || imgZ < 0 || imgZ >= h) continue;
                 
+                int rgb = ColumnStore.rgb(columns[(z << 4) | x]);
+                
+                for (int dx = 0; dx < pixelSize && imgX + dx < w; dx++) {
+                    for (int dz = 0; dz < pixelSize && imgZ + dz < h; dz++) {
+                        img.setRGB(imgX + dx, imgZ + dz, rgb);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Draw one chunk into an existing render, clipped to the map's block bounds
+     */
+    void paintChunk(BufferedImage img, long[] columns, int cx, int cz, WebMapPlugin.MapInfo info) {
+        int w = img.getWidth(), h = img.getHeight();
+        int pixelSize = Math.max(1, (int)Math.ceil(info.pixelsPerBlock));
+        
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                int worldX = cx * 16 + x;
+                int worldZ = cz * 16 + z;
+                if (worldX < info.blockMinX || worldX >= info.blockMaxX ||
+                    worldZ < info.blockMinZ || worldZ >= info.blockMaxZ) continue;
+                
+                int imgX = (int)((worldX - info.blockMinX) * info.pixelsPerBlock);
+                int imgZ = (int)((worldZ - info.blockMinZ) * info.pixelsPerBlock);
+                if (imgX < 0 || imgX >= w || imgZ < 0 || imgZ >= h) continue;
+                
+                int rgb = ColumnStore.rgb(columns[(z << 4) | x]);
+                
+                for (int dx = 0; dx < pixelSize && imgX + dx < w; dx++) {
+                    for (int dz = 0; dz < pixelSize && imgZ + dz < h; dz++) {
+                        img.setRGB(imgX + dx, imgZ + dz, rgb);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Top visible block, surface height and shaded colour of every column in a chunk
+     * Packed with ColumnStore.pack, index (z << 4) | x
+     */
+    long[] scanChunk(FullChunk chunk) {
+        long[] columns = new long[256];
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
                 int height = chunk.getHighestBlockAt(x, z);
                 int blockId = 0, blockData = 0;
                 
@@ -271,14 +535,37 @@ public class MapRenderer {
                 
                 Color c = getBlockColor(blockId, blockData);
                 int rgb = applyShading(c, height, x, z, chunk).getRGB();
-                
-                for (int dx = 0; dx < pixelSize && imgX + dx < w; dx++) {
-                    for (int dz = 0; dz < pixelSize && imgZ + dz < h; dz++) {
-                        img.setRGB(imgX + dx, imgZ + dz, rgb);
-                    }
-                }
+                columns[(z << 4) | x] = ColumnStore.pack(blockId, blockData, height, rgb);
             }
         }
+        return columns;
+    }
+    
+    /**
+     * Column data is written next to the render as <world>.columns.tmp,
+     * the plugin swaps it in once the PNG is saved
+     */
+    private ColumnStore createColumnStore(Level level, int minCX, int minCZ, int chunksX, int chunksZ) {
+        File file = new File(plugin.getMapFolder(), level.getName() + ".columns.tmp");
+        try {
+            return ColumnStore.create(file, minCX, minCZ, chunksX, chunksZ);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Column data disabled for this render: " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+    
+    private ColumnStore storeColumns(ColumnStore store, int cx, int cz, long[] columns) {
+        if (store == null) return null;
+        try {
+            store.put(cx, cz, columns);
+            return store;
+        } catch (IOException e) {
+            plugin.getLogger().warning("Column data write failed: " + e.getMessage());
+            store.close();
+            return null;
+        }
     }
     
     /**
@@ -315,7 +602,7 @@ public class MapRenderer {
         return Color.getHSBColor(hsb[0], newSat, hsb[2]);
     }
     
-    private void scanProviderChunks(LevelProvider provider, Set<Long> chunkKeys) {
+    private void scanProviderChunks(LevelProvider provider, ChunkCoverage coverage) {
         try {
             String[] fieldNames = {"chunks", "chunkCache", "loadedChunks", "db", "database"};
             for (String fieldName : fieldNames) {
@@ -328,7 +615,8 @@ public class MapRenderer {
                             Map<?, ?> map = (Map<?, ?>) value;
                             for (Object key : map.keySet()) {
                                 if (key instanceof Long) {
-                                    chunkKeys.add((Long) key);
+                                    long k = (Long) key;
+                                    coverage.markExists((int)(k >> 32), (int) k);
                                 }
                             }
                         }
@@ -352,68 +640,45 @@ public class MapRenderer {
         return null;
     }
     
-    private void exhaustiveScan(Level level, Set<Long> chunkKeys) {
-        int spawnCX = level.getSpawnLocation().getFloorX() >> 4;
-        int spawnCZ = level.getSpawnLocation().getFloorZ() >> 4;
-        
-        Set<int[]> scanCenters = new LinkedHashSet<>();
-        scanCenters.add(new int[]{spawnCX, spawnCZ});
-        scanCenters.add(new int[]{0, 0});
-        
-        for (cn.nukkit.Player p : level.getPlayers().values()) {
-            scanCenters.add(new int[]{p.getFloorX() >> 4, p.getFloorZ() >> 4});
-        }
-        
-        for (Long key : new HashSet<>(chunkKeys)) {
-            int cx = (int)(key >> 32);
-            int cz = key.intValue();
-            scanCenters.add(new int[]{cx, cz});
-        }
-        
-        plugin.getLogger().info("Scanning from " + scanCenters.size() + " points");
-        
-        int maxRadius = 150;
-        int totalFound = 0;
-        
-        for (int[] center : scanCenters) {
-            int centerX = center[0];
-            int centerZ = center[1];
-            int emptyRings = 0;
-            
-            for (int r = 0; r <= maxRadius && emptyRings < 10; r++) {
-                int found = 0;
-                
-                for (int dx = -r; dx <= r; dx++) {
-                    for (int dz = -r; dz <= r; dz++) {
-                        if (r > 0 && Math.abs(dx) != r && Math.abs(dz) != r) continue;
-                        
-                        int cx = centerX + dx;
-                        int cz = centerZ + dz;
-                        long key = chunkKey(cx, cz);
-                        
-                        if (chunkKeys.contains(key)) continue;
-                        
-                        try {
-                            if (level.loadChunk(cx, cz, false)) {
-                                FullChunk chunk = level.getChunk(cx, cz);
-                                if (chunk != null) {
-                                    chunkKeys.add(key);
-                                    found++;
-                                    totalFound++;
-                                }
-                            }
-                        } catch (Exception ignored) {}
-                    }
+    /**
+     * Sort chunk keys into rings around their nearest hot spot, each ring walked by angle,
+     * so drawing spirals outwards from every spot at once
+     *
+     * @return number of leading keys within HOT_RADIUS chunks of a spot
+     */
+    static int orderByPriority(long[] keys, long[] spots) {
+        if (spots.length == 0) return 0;
+        long[] order = new long[keys.length];
+        int hot = 0;
+        for (int i = 0; i < keys.length; i++) {
+            int cx = (int)(keys[i] >> 32);
+            int cz = (int) keys[i];
+            int best = Integer.MAX_VALUE, bestDx = 0, bestDz = 0;
+            for (long spot : spots) {
+                int dx = cx - (int)(spot >> 32);
+                int dz = cz - (int) spot;
+                int d = Math.max(Math.abs(dx), Math.abs(dz));
+                if (d < best) {
+                    best = d;
+                    bestDx = dx;
+                    bestDz = dz;
                 }
-                
-                emptyRings = (found == 0) ? emptyRings + 1 : 0;
             }
+            if (best <= HOT_RADIUS) hot++;
+            // Ring (20 bits), angle (12 bits), original index (32 bits)
+            long angle = (long)((Math.atan2(bestDz, bestDx) + Math.PI) / (2 * Math.PI) * 4095);
+            order[i] = ((long) Math.min(best, 0xFFFFF) << 44) | (angle << 32) | i;
         }
-        
-        plugin.getLogger().info("Found " + totalFound + " chunks via scan");
+        Arrays.sort(order);
+        long[] sorted = new long[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = keys[(int) order[i]];
+        }
+        System.arraycopy(sorted, 0, keys, 0, keys.length);
+        return hot;
     }
     
-    private long chunkKey(int cx, int cz) {
+    static long chunkKey(int cx, int cz) {
         return (((long)cx) << 32) | (cz & 0xFFFFFFFFL);
     }
     
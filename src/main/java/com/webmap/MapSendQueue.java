@@ -0,0 +1,186 @@
+package com.webmap;
+
+import cn.nukkit.Player;
+import cn.nukkit.network.protocol.DataPacket;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map wall pieces waiting to be sent, one queue per player
+ * Every tick each player gets a share of a bytes per second budget (scaled
+ * down by the load governor) and is sent the queued pieces closest to where
+ * they stand. Pieces are looked up by map id only when they go out, so a
+ * player never receives a version that is already outdated and a piece queued
+ * twice is sent once. A piece queued with the rectangle that changed is sent
+ * as a partial update; queued again, the rectangles are merged.
+ *
+ * Main thread only, apart from the counters read by /api/stats.
+ */
+public class MapSendQueue {
+
+    /**
+     * Content of queued pieces
+     */
+    public interface PieceSource {
+        /**
+         * Current content of a map id, null if there is nothing to send now
+         * A source that needs time to build a piece queues it for the player again once it is ready.
+         */
+        MapPieceStore.Piece get(Player player, long mapId);
+    }
+
+    private static class Piece {
+        final long mapId;
+        final int x, y, z;
+        // Part to send, null for the whole piece
+        final Rectangle rect;
+
+        Piece(long mapId, int x, int y, int z, Rectangle rect) {
+            this.mapId = mapId;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.rect = rect;
+        }
+    }
+
+    private static class PlayerQueue {
+        final Player player;
+        final Map<Long, Piece> pieces = new LinkedHashMap<>();
+        double tokens;
+
+        PlayerQueue(Player player) {
+            this.player = player;
+        }
+    }
+
+    private final WebMapPlugin plugin;
+    private final int bytesPerSecond;
+    private final PieceSource pieces;
+    private final Map<String, PlayerQueue> queues = new HashMap<>();
+
+    private volatile int queuedPieces;
+    private volatile long sentPackets, sentBytes, coalesced, partialPackets;
+
+    public MapSendQueue(WebMapPlugin plugin, int bytesPerSecond, PieceSource pieces) {
+        this.plugin = plugin;
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.pieces = pieces;
+    }
+
+    /**
+     * Queue a piece for a player, x/y/z is where the piece hangs in the world
+     */
+    public void enqueue(Player player, long mapId, int x, int y, int z) {
+        enqueue(player, mapId, x, y, z, null);
+    }
+
+    /**
+     * Queue the changed rectangle of a piece, null for the whole piece
+     * Only for players that were sent the piece before.
+     */
+    public void enqueue(Player player, long mapId, int x, int y, int z, Rectangle rect) {
+        PlayerQueue q = queues.get(player.getName());
+        if (q == null || q.player != player) {
+            // New session under the same name, the old queue is useless
+            q = new PlayerQueue(player);
+            queues.put(player.getName(), q);
+        }
+        Piece old = q.pieces.get(mapId);
+        if (old != null) {
+            // The player still misses the older change too
+            if (rect != null) rect = old.rect == null ? null : rect.union(old.rect);
+            q.pieces.put(mapId, new Piece(mapId, x, y, z, rect));
+            coalesced++;
+        } else {
+            q.pieces.put(mapId, new Piece(mapId, x, y, z, rect));
+            queuedPieces++;
+        }
+    }
+
+    /**
+     * Drop the pieces of one wall queued for a player, e.g. after walking away from it
+     */
+    public void forget(String playerName, long[][] mapIds) {
+        PlayerQueue q = queues.get(playerName);
+        if (q == null) return;
+        for (long[] column : mapIds) {
+            for (long mapId : column) {
+                if (q.pieces.remove(mapId) != null) queuedPieces--;
+            }
+        }
+        if (q.pieces.isEmpty()) queues.remove(playerName);
+    }
+
+    /**
+     * Called every tick
+     */
+    public void tick() {
+        if (queues.isEmpty()) return;
+        LoadGovernor governor = plugin.getLoadGovernor();
+        int perTick = bytesPerSecond / 20;
+        if (governor != null) perTick = governor.packetBatch(perTick);
+
+        int queued = 0;
+        for (Iterator<PlayerQueue> it = queues.values().iterator(); it.hasNext(); ) {
+            PlayerQueue q = it.next();
+            if (!q.player.isOnline() || q.pieces.isEmpty()) {
+                it.remove();
+                continue;
+            }
+            if (perTick > 0) {
+                // Unused budget carries over for a quarter of a second at most
+                q.tokens = Math.min(q.tokens + perTick, Math.max(perTick, bytesPerSecond / 4.0));
+                while (q.tokens > 0 && !q.pieces.isEmpty()) {
+                    Piece piece = nearest(q);
+                    q.pieces.remove(piece.mapId);
+                    MapPieceStore.Piece content = pieces.get(q.player, piece.mapId);
+                    if (content == null) continue;
+                    DataPacket pk = plugin.getMapPacketCache().get(piece.mapId, content, piece.rect);
+                    if (piece.rect != null) partialPackets++;
+                    q.player.dataPacket(pk);
+                    int size = MapPacketCache.encodedSize(pk);
+                    // A large packet may overdraw, the player then waits a few ticks
+                    q.tokens -= size;
+                    sentPackets++;
+                    sentBytes += size;
+                }
+            }
+            if (q.pieces.isEmpty()) {
+                it.remove();
+            } else {
+                queued += q.pieces.size();
+            }
+        }
+        queuedPieces = queued;
+    }
+
+    private static Piece nearest(PlayerQueue q) {
+        double px = q.player.getX(), py = q.player.getY(), pz = q.player.getZ();
+        Piece best = null;
+        double bestDist = Double.MAX_VALUE;
+        for (Piece p : q.pieces.values()) {
+            double dx = p.x - px, dy = p.y - py, dz = p.z - pz;
+            double d = dx * dx + dy * dy + dz * dz;
+            if (d < bestDist) {
+                bestDist = d;
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    public void appendStats(StringBuilder json) {
+        json.append("{\"queued\":").append(queuedPieces)
+            .append(",\"sentPackets\":").append(sentPackets)
+            .append(",\"sentBytes\":").append(sentBytes)
+            .append(",\"coalesced\":").append(coalesced)
+            .append(",\"partialPackets\":").append(partialPackets)
+            .append(",\"bytesPerSecond\":").append(bytesPerSecond)
+            .append("}");
+    }
+}
@@ -0,0 +1,185 @@
+package com.webmap;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spatial index of everything drawn on top of the map (players, walls, ...)
+ * Markers live in per-world grid cells of 64x64 blocks. Moving a marker only
+ * touches its old and new cell, and a bounding box query only visits the
+ * cells it overlaps, so cost follows what is visible rather than the total.
+ *
+ * Written from the main thread, queried from HTTP and async threads.
+ */
+public class MarkerIndex {
+
+    public static final String PLAYER = "player";
+    public static final String WALL = "wall";
+
+    private static final int CELL_SHIFT = 6;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Map<Long, List<Marker>>> worlds = new HashMap<>();
+    private final Map<String, Marker> byKey = new HashMap<>();
+
+    // Main thread only
+    private final Set<String> playerIds = new HashSet<>();
+    private PlayerFeed.PlayerSnapshot syncedSnapshot;
+
+    public static class Marker {
+        public final String type, id, label, world;
+        public final int x, y, z;
+
+        public Marker(String type, String id, String label, String world, int x, int y, int z) {
+            this.type = type;
+            this.id = id;
+            this.label = label;
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    /**
+     * Add a marker, or move it if one with the same type and id exists
+     */
+    public void put(Marker m) {
+        lock.writeLock().lock();
+        try {
+            Marker old = byKey.put(m.type + ":" + m.id, m);
+            long cell = cellKey(m.x >> CELL_SHIFT, m.z >> CELL_SHIFT);
+            if (old != null && old.world.equals(m.world)
+                    && cellKey(old.x >> CELL_SHIFT, old.z >> CELL_SHIFT) == cell) {
+                List<Marker> bucket = worlds.get(m.world).get(cell);
+                bucket.set(bucket.indexOf(old), m);
+                return;
+            }
+            if (old != null) unlink(old);
+            worlds.computeIfAbsent(m.world, w -> new HashMap<>())
+                  .computeIfAbsent(cell, c -> new ArrayList<>(4))
+                  .add(m);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String type, String id) {
+        lock.writeLock().lock();
+        try {
+            Marker old = byKey.remove(type + ":" + id);
+            if (old != null) unlink(old);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Main thread only: bring player markers in line with a feed snapshot.
+     * Players that did not move are not touched.
+     */
+    public void syncPlayers(PlayerFeed.PlayerSnapshot snapshot) {
+        if (snapshot == syncedSnapshot) return;
+        syncedSnapshot = snapshot;
+
+        Set<String> present = new HashSet<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            String name = snapshot.name(i);
+            present.add(name);
+            Marker old = get(PLAYER, name);
+            if (old == null || old.x != snapshot.x(i) || old.y != snapshot.y(i) || old.z != snapshot.z(i)
+                    || !old.world.equals(snapshot.world(i))) {
+                put(new Marker(PLAYER, name, name, snapshot.world(i), snapshot.x(i), snapshot.y(i), snapshot.z(i)));
+            }
+        }
+        for (String name : playerIds) {
+            if (!present.contains(name)) remove(PLAYER, name);
+        }
+        playerIds.clear();
+        playerIds.addAll(present);
+    }
+
+    public Marker get(String type, String id) {
+        lock.readLock().lock();
+        try {
+            return byKey.get(type + ":" + id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Markers with x1 <= x < x2 and z1 <= z < z2, optionally of one type only
+     *
+     * @param limit stop after this many matches
+     */
+    public List<Marker> query(String world, int x1, int z1, int x2, int z2, String type, int limit) {
+        List<Marker> out = new ArrayList<>();
+        if (x2 <= x1 || z2 <= z1) return out;
+        int cx1 = x1 >> CELL_SHIFT, cz1 = z1 >> CELL_SHIFT;
+        int cx2 = (x2 - 1) >> CELL_SHIFT, cz2 = (z2 - 1) >> CELL_SHIFT;
+
+        lock.readLock().lock();
+        try {
+            Map<Long, List<Marker>> cells = worlds.get(world);
+            if (cells == null) return out;
+
+            long boxCells = ((long) cx2 - cx1 + 1) * ((long) cz2 - cz1 + 1);
+            if (boxCells > cells.size()) {
+                // Box is larger than the occupied area, walk the occupied cells instead
+                for (List<Marker> bucket : cells.values()) {
+                    if (!collect(bucket, x1, z1, x2, z2, type, limit, out)) break;
+                }
+            } else {
+                outer:
+                for (int cx = cx1; cx <= cx2; cx++) {
+                    for (int cz = cz1; cz <= cz2; cz++) {
+                        List<Marker> bucket = cells.get(cellKey(cx, cz));
+                        if (bucket != null && !collect(bucket, x1, z1, x2, z2, type, limit, out)) break outer;
+                    }
+                }
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byKey.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return false once the limit is reached
+     */
+    private static boolean collect(List<Marker> bucket, int x1, int z1, int x2, int z2, String type, int limit, List<Marker> out) {
+        for (Marker m : bucket) {
+            if (m.x < x1 || m.x >= x2 || m.z < z1 || m.z >= z2) continue;
+            if (type != null && !type.equals(m.type)) continue;
+            if (out.size() >= limit) return false;
+            out.add(m);
+        }
+        return true;
+    }
+
+    private void unlink(Marker m) {
+        Map<Long, List<Marker>> cells = worlds.get(m.world);
+        if (cells == null) return;
+        long cell = cellKey(m.x >> CELL_SHIFT, m.z >> CELL_SHIFT);
+        List<Marker> bucket = cells.get(cell);
+        if (bucket == null) return;
+        bucket.remove(m);
+        if (bucket.isEmpty()) cells.remove(cell);
+        if (cells.isEmpty()) worlds.remove(m.world);
+    }
+
+    private static long cellKey(int cx, int cz) {
+        return (((long) cx) << 32) | (cz & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,374 @@
+package com.webmap;
+
+import cn.nukkit.Player;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Player positions as seen by the HTTP layer
+ * The main thread publishes an immutable snapshot every few ticks,
+ * HTTP threads only ever read the volatile reference.
+ *
+ * Besides the full list, the feed keeps a numbered history of deltas
+ * (joins, leaves, moves beyond a threshold) so pollers can ask for
+ * "what changed since seq N" and get a near empty answer when idle.
+ * Sequence numbers start at the time the feed was created, so a cursor kept
+ * from before a restart is older than every number of the new run and gets
+ * the full list.
+ *
+ * Binary frame served at /api/players.bin (all integers are LEB128 varints,
+ * coordinates are zigzag encoded first, strings are varint length + UTF-8):
+ * <pre>
+ *   'W' 'M'  version(1)  flags(bit0 = names included)
+ *   seq
+ *   worldCount, worldCount x string
+ *   playerCount, playerCount x { id, worldIndex, zz(x), zz(y), zz(z) [, name] }
+ * </pre>
+ * Player ids are stable for as long as the server runs, so clients can fetch
+ * names once and then poll with ?names=0.
+ */
+public class PlayerFeed {
+
+    private final int moveThreshold;
+    private final int historySize;
+
+    private volatile PlayerSnapshot snapshot = PlayerSnapshot.EMPTY;
+
+    // Main thread only: last position reported to delta clients, and the delta ring
+    private final Map<String, Entry> emitted = new HashMap<>();
+    private final Map<String, Integer> playerIds = new HashMap<>();
+    private final Delta[] ring;
+    private int ringHead = 0;
+    private int ringCount = 0;
+    private long seq;
+
+    public PlayerFeed(int moveThreshold, int historySize) {
+        this.moveThreshold = Math.max(0, moveThreshold);
+        this.historySize = Math.max(1, historySize);
+        this.ring = new Delta[this.historySize];
+        // At most one delta per tick (20 a second), so a run never counts past the start of the next
+        this.seq = System.currentTimeMillis();
+    }
+
+    public PlayerSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Main thread only: copy live player state into a new snapshot
+     */
+    public void publish(Collection<Player> online) {
+        int n = online.size();
+        String[] names = new String[n];
+        String[] worlds = new String[n];
+        int[] ids = new int[n];
+        int[] xs = new int[n], ys = new int[n], zs = new int[n];
+
+        int i = 0;
+        for (Player p : online) {
+            if (i >= n) break;
+            if (p.getLevel() == null) continue;
+            names[i] = p.getName();
+            Integer id = playerIds.get(names[i]);
+            if (id == null) {
+                id = playerIds.size();
+                playerIds.put(names[i], id);
+            }
+            ids[i] = id;
+            worlds[i] = p.getLevel().getName();
+            xs[i] = p.getFloorX();
+            ys[i] = p.getFloorY();
+            zs[i] = p.getFloorZ();
+            i++;
+        }
+        if (i < n) {
+            names = Arrays.copyOf(names, i);
+            worlds = Arrays.copyOf(worlds, i);
+            ids = Arrays.copyOf(ids, i);
+            xs = Arrays.copyOf(xs, i);
+            ys = Arrays.copyOf(ys, i);
+            zs = Arrays.copyOf(zs, i);
+        }
+
+        PlayerSnapshot previous = snapshot;
+        if (previous.sameAs(names, worlds, xs, ys, zs)) return;
+
+        Delta[] history = previous.history;
+        Delta delta = computeDelta(names, worlds, xs, ys, zs);
+        if (delta != null) {
+            ring[ringHead] = delta;
+            ringHead = (ringHead + 1) % historySize;
+            if (ringCount < historySize) ringCount++;
+            history = new Delta[ringCount];
+            int start = (ringHead - ringCount + historySize) % historySize;
+            for (int k = 0; k < ringCount; k++) {
+                history[k] = ring[(start + k) % historySize];
+            }
+        }
+
+        snapshot = new PlayerSnapshot(names, worlds, ids, xs, ys, zs, seq, history, System.currentTimeMillis());
+    }
+
+    private Delta computeDelta(String[] names, String[] worlds, int[] xs, int[] ys, int[] zs) {
+        List<Entry> changed = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+
+        for (int i = 0; i < names.length; i++) {
+            present.add(names[i]);
+            Entry last = emitted.get(names[i]);
+            if (last == null || !last.world.equals(worlds[i])
+                    || Math.abs(last.x - xs[i]) > moveThreshold
+                    || Math.abs(last.y - ys[i]) > moveThreshold
+                    || Math.abs(last.z - zs[i]) > moveThreshold) {
+                Entry e = new Entry(names[i], worlds[i], xs[i], ys[i], zs[i]);
+                emitted.put(e.name, e);
+                changed.add(e);
+            }
+        }
+
+        List<String> left = new ArrayList<>();
+        Iterator<String> it = emitted.keySet().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            if (!present.contains(name)) {
+                left.add(name);
+                it.remove();
+            }
+        }
+
+        if (changed.isEmpty() && left.isEmpty()) return null;
+        seq++;
+        return new Delta(seq, changed.toArray(new Entry[0]), left.toArray(new String[0]));
+    }
+
+    private static void appendPlayer(StringBuilder sb, String name, String world, int x, int y, int z) {
+        sb.append("{\"name\":\"").append(WebServer.escapeJson(name)).append("\"");
+        sb.append(",\"world\":\"").append(WebServer.escapeJson(world)).append("\"");
+        sb.append(",\"x\":").append(x);
+        sb.append(",\"y\":").append(y);
+        sb.append(",\"z\":").append(z).append("}");
+    }
+
+    private static void appendLeft(StringBuilder sb, Collection<String> left) {
+        sb.append("],\"left\":[");
+        boolean first = true;
+        for (String name : left) {
+            if (!first) sb.append(",");
+            sb.append("\"").append(WebServer.escapeJson(name)).append("\"");
+            first = false;
+        }
+        sb.append("]}");
+    }
+
+    static class Entry {
+        final String name, world;
+        final int x, y, z;
+        Entry(String name, String world, int x, int y, int z) {
+            this.name = name;
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    static class Delta {
+        final long seq;
+        final Entry[] players;
+        final String[] left;
+        final byte[] json;
+
+        Delta(long seq, Entry[] players, String[] left) {
+            this.seq = seq;
+            this.players = players;
+            this.left = left;
+
+            StringBuilder sb = new StringBuilder("{\"seq\":").append(seq).append(",\"full\":false,\"players\":[");
+            for (int i = 0; i < players.length; i++) {
+                if (i > 0) sb.append(",");
+                Entry e = players[i];
+                appendPlayer(sb, e.name, e.world, e.x, e.y, e.z);
+            }
+            appendLeft(sb, Arrays.asList(left));
+            this.json = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Immutable copy of all online players. Arrays are never modified after construction.
+     */
+    public static class PlayerSnapshot {
+        static final PlayerSnapshot EMPTY = new PlayerSnapshot(
+            new String[0], new String[0], new int[0], new int[0], new int[0], new int[0], 0, new Delta[0], 0);
+
+        public final long time;
+        public final long seq;
+        private final String[] names;
+        private final String[] worlds;
+        private final int[] ids;
+        private final int[] xs, ys, zs;
+        private final Delta[] history;
+        private final byte[] json;
+        private volatile byte[] fullDelta;
+        private volatile byte[] binaryWithNames, binaryIdsOnly;
+
+        PlayerSnapshot(String[] names, String[] worlds, int[] ids, int[] xs, int[] ys, int[] zs,
+                       long seq, Delta[] history, long time) {
+            this.names = names;
+            this.worlds = worlds;
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+            this.zs = zs;
+            this.seq = seq;
+            this.history = history;
+            this.time = time;
+            this.json = toJson();
+        }
+
+        public int size() { return names.length; }
+        public String name(int i) { return names[i]; }
+        public String world(int i) { return worlds[i]; }
+        public int id(int i) { return ids[i]; }
+        public int x(int i) { return xs[i]; }
+        public int y(int i) { return ys[i]; }
+        public int z(int i) { return zs[i]; }
+
+        /**
+         * Pre-serialized {"players":[...]} body. Callers must not modify it.
+         */
+        public byte[] json() { return json; }
+
+        /**
+         * Changes since the given sequence number:
+         * {"seq":N,"full":false,"players":[joined or moved],"left":[names]}.
+         * Clients too far behind, or from before a restart (older than this run's first sequence),
+         * get "full":true with every player.
+         */
+        public byte[] deltaSince(long since) {
+            if (since == seq) {
+                return ("{\"seq\":" + seq + ",\"full\":false,\"players\":[],\"left\":[]}").getBytes(StandardCharsets.UTF_8);
+            }
+            if (since > seq || since < 0 || history.length == 0 || since < history[0].seq - 1) {
+                return fullDelta();
+            }
+
+            Delta last = history[history.length - 1];
+            if (since == last.seq - 1) return last.json;
+
+            // Merge everything after 'since', later entries win
+            Map<String, Entry> players = new LinkedHashMap<>();
+            Set<String> left = new LinkedHashSet<>();
+            for (Delta d : history) {
+                if (d.seq <= since) continue;
+                for (Entry e : d.players) {
+                    players.put(e.name, e);
+                    left.remove(e.name);
+                }
+                for (String name : d.left) {
+                    players.remove(name);
+                    left.add(name);
+                }
+            }
+
+            StringBuilder sb = new StringBuilder("{\"seq\":").append(seq).append(",\"full\":false,\"players\":[");
+            boolean first = true;
+            for (Entry e : players.values()) {
+                if (!first) sb.append(",");
+                appendPlayer(sb, e.name, e.world, e.x, e.y, e.z);
+                first = false;
+            }
+            appendLeft(sb, left);
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private byte[] fullDelta() {
+            byte[] full = fullDelta;
+            if (full == null) {
+                StringBuilder sb = new StringBuilder("{\"seq\":").append(seq).append(",\"full\":true,\"players\":[");
+                for (int i = 0; i < names.length; i++) {
+                    if (i > 0) sb.append(",");
+                    appendPlayer(sb, names[i], worlds[i], xs[i], ys[i], zs[i]);
+                }
+                appendLeft(sb, Collections.emptyList());
+                full = sb.toString().getBytes(StandardCharsets.UTF_8);
+                fullDelta = full;
+            }
+            return full;
+        }
+
+        /**
+         * Compact binary frame, see the class comment for the layout.
+         * Encoded lazily once per snapshot and shared by all requests.
+         */
+        public byte[] binary(boolean withNames) {
+            byte[] cached = withNames ? binaryWithNames : binaryIdsOnly;
+            if (cached != null) return cached;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16 + names.length * (withNames ? 20 : 8));
+            out.write('W');
+            out.write('M');
+            out.write(1);
+            out.write(withNames ? 1 : 0);
+            writeVarInt(out, seq);
+
+            Map<String, Integer> worldIndex = new LinkedHashMap<>();
+            for (String w : worlds) {
+                worldIndex.putIfAbsent(w, worldIndex.size());
+            }
+            writeVarInt(out, worldIndex.size());
+            for (String w : worldIndex.keySet()) {
+                writeString(out, w);
+            }
+
+            writeVarInt(out, names.length);
+            for (int i = 0; i < names.length; i++) {
+                writeVarInt(out, ids[i]);
+                writeVarInt(out, worldIndex.get(worlds[i]));
+                writeVarInt(out, zigzag(xs[i]));
+                writeVarInt(out, zigzag(ys[i]));
+                writeVarInt(out, zigzag(zs[i]));
+                if (withNames) writeString(out, names[i]);
+            }
+
+            cached = out.toByteArray();
+            if (withNames) binaryWithNames = cached; else binaryIdsOnly = cached;
+            return cached;
+        }
+
+        private static long zigzag(int v) {
+            return ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL;
+        }
+
+        private static void writeVarInt(ByteArrayOutputStream out, long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, b.length);
+            out.write(b, 0, b.length);
+        }
+
+        boolean sameAs(String[] n, String[] w, int[] x, int[] y, int[] z) {
+            return Arrays.equals(xs, x) && Arrays.equals(zs, z) && Arrays.equals(ys, y)
+                && Arrays.equals(names, n) && Arrays.equals(worlds, w);
+        }
+
+        private byte[] toJson() {
+            StringBuilder sb = new StringBuilder(16 + names.length * 64).append("{\"players\":[");
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) sb.append(",");
+                appendPlayer(sb, names[i], worlds[i], xs[i], ys[i], zs[i]);
+            }
+            sb.append("]}");
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
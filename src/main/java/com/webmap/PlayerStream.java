@@ -0,0 +1,283 @@
+package com.webmap;
+
+import cn.nukkit.plugin.PluginLogger;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Server-Sent Events hub for /api/players/stream
+ * One producer serializes each player snapshot once and every subscriber
+ * gets the same bytes. HTTP worker threads are released as soon as a client
+ * subscribes. The hub thread only hands frames to a small queue per
+ * subscriber; a small pool of writer threads does the blocking socket
+ * writes, so a client that stops reading cannot hold up the others. A
+ * subscriber that falls MAX_QUEUED_FRAMES behind, or whose write has been
+ * stuck for WRITE_TIMEOUT_MILLIS, is dropped: its writer is interrupted,
+ * which closes the socket under the blocked write and frees the thread.
+ */
+public class PlayerStream {
+
+    private static final int HEARTBEAT_SECONDS = 15;
+    private static final int RETRY_MILLIS = 3000;
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_QUEUED_FRAMES = 8;
+    private static final long WRITE_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_WRITERS = 8;
+
+    private final Supplier<byte[]> producer;
+    private final int intervalSeconds;
+    private final int maxSubscribers;
+    private final PluginLogger logger;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private ScheduledExecutorService executor;
+    private ExecutorService writers;
+
+    // Only touched on the hub thread
+    private byte[] lastJson;
+    private byte[] lastFrame;
+    // Starts at the start time, an event id kept by a client from before a restart never matches
+    private long lastEventId = System.currentTimeMillis();
+    private String lastError;
+
+    public PlayerStream(Supplier<byte[]> producer, int intervalSeconds, int maxSubscribers, PluginLogger logger) {
+        this.producer = producer;
+        this.intervalSeconds = intervalSeconds;
+        this.maxSubscribers = maxSubscribers;
+        this.logger = logger;
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WebMap-PlayerStream");
+            t.setDaemon(true);
+            return t;
+        });
+        writers = Executors.newFixedThreadPool(Math.max(1, Math.min(maxSubscribers, MAX_WRITERS)), r -> {
+            Thread t = new Thread(r, "WebMap-PlayerStream-Writer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleAtFixedRate(this::produce, 0, intervalSeconds, TimeUnit.SECONDS);
+        executor.scheduleAtFixedRate(() -> broadcast(HEARTBEAT), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) executor.shutdownNow();
+        for (Subscriber s : subscribers) {
+            drop(s);
+        }
+        subscribers.clear();
+        if (writers != null) {
+            writers.shutdown();
+            try {
+                if (!writers.awaitTermination(1, TimeUnit.SECONDS)) writers.shutdownNow();
+            } catch (InterruptedException e) {
+                writers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        subscriberCount.set(0);
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    /**
+     * Register an SSE client. Returns false (and leaves the exchange untouched)
+     * when the subscriber cap is reached.
+     */
+    public boolean subscribe(HttpExchange ex) throws IOException {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return false;
+        }
+
+        String lastIdHeader = ex.getRequestHeaders().getFirst("Last-Event-ID");
+
+        ex.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        ex.getResponseHeaders().set("Cache-Control", "no-cache");
+        ex.getResponseHeaders().set("X-Accel-Buffering", "no");
+        ex.sendResponseHeaders(200, 0);
+
+        Subscriber sub = new Subscriber(ex);
+        executor.execute(() -> {
+            StringBuilder hello = new StringBuilder("retry: ").append(RETRY_MILLIS).append("\n\n");
+            byte[] initial = hello.toString().getBytes(StandardCharsets.UTF_8);
+            // A reconnecting client that already saw the latest event only needs new ones
+            boolean upToDate = lastFrame != null && String.valueOf(lastEventId).equals(lastIdHeader);
+            if (!send(sub, initial) || (lastFrame != null && !upToDate && !send(sub, lastFrame))) {
+                drop(sub);
+                return;
+            }
+            subscribers.add(sub);
+        });
+        return true;
+    }
+
+    private void produce() {
+        try {
+            byte[] json = producer.get();
+            if (json == null || Arrays.equals(json, lastJson)) return;
+
+            lastJson = json;
+            lastEventId++;
+            byte[] head = ("id: " + lastEventId + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+            byte[] frame = new byte[head.length + json.length + 2];
+            System.arraycopy(head, 0, frame, 0, head.length);
+            System.arraycopy(json, 0, frame, head.length, json.length);
+            frame[frame.length - 2] = '\n';
+            frame[frame.length - 1] = '\n';
+            lastFrame = frame;
+
+            broadcast(frame);
+            lastError = null;
+        } catch (Exception e) {
+            // Keep the schedule alive, next interval retries. Log each new error once.
+            String error = String.valueOf(e);
+            if (!error.equals(lastError)) {
+                lastError = error;
+                logger.warning("Player stream update failed: " + error);
+            }
+        }
+    }
+
+    private void broadcast(byte[] frame) {
+        for (Subscriber s : subscribers) {
+            if (!send(s, frame)) {
+                subscribers.remove(s);
+                drop(s);
+            }
+        }
+    }
+
+    /**
+     * Hub thread: queue a frame for a subscriber without waiting for its socket
+     *
+     * @return false if the subscriber is gone, too far behind or stuck in a write
+     */
+    private boolean send(Subscriber s, byte[] data) {
+        if (s.closed.get()) return false;
+        long since = s.writingSince;
+        if (since != 0 && System.currentTimeMillis() - since > WRITE_TIMEOUT_MILLIS) return false;
+        if (!s.queue.offer(data)) return false;
+        schedule(s);
+        return true;
+    }
+
+    private void schedule(Subscriber s) {
+        if (!s.draining.compareAndSet(false, true)) return;
+        try {
+            writers.execute(() -> drain(s));
+        } catch (RuntimeException e) {
+            // Stopping
+            s.draining.set(false);
+        }
+    }
+
+    /**
+     * Writer thread: write queued frames until the queue is empty, close the exchange once dropped
+     */
+    private void drain(Subscriber s) {
+        do {
+            byte[] data;
+            while (!s.closed.get() && (data = s.queue.poll()) != null) {
+                beginWrite(s);
+                try {
+                    s.out.write(data);
+                    s.out.flush();
+                } catch (IOException e) {
+                    subscribers.remove(s);
+                    drop(s);
+                } finally {
+                    endWrite(s);
+                }
+            }
+            if (s.closed.get()) {
+                // Ending the response writes too; it is cut off like a write if it gets stuck
+                s.queue.clear();
+                beginWrite(s);
+                try {
+                    s.exchange.close();
+                } finally {
+                    endWrite(s);
+                }
+                // draining stays set, nothing is scheduled for this subscriber again
+                return;
+            }
+            s.draining.set(false);
+            // A frame queued between the last poll and clearing the flag is written too
+        } while (!s.queue.isEmpty() && s.draining.compareAndSet(false, true));
+    }
+
+    private void beginWrite(Subscriber s) {
+        synchronized (s) {
+            s.writer = Thread.currentThread();
+            s.writingSince = System.currentTimeMillis();
+        }
+    }
+
+    private void endWrite(Subscriber s) {
+        synchronized (s) {
+            s.writer = null;
+            s.writingSince = 0;
+            // An interrupt meant for this subscriber must not hit the next one on this thread
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Interrupt a write in progress: the socket channel closes under it and the write fails
+     */
+    private void cutOff(Subscriber s) {
+        synchronized (s) {
+            if (s.writer != null) s.writer.interrupt();
+        }
+    }
+
+    private void drop(Subscriber s) {
+        if (!s.closed.compareAndSet(false, true)) return;
+        subscriberCount.decrementAndGet();
+        cutOff(s);
+        // The writer closes the exchange; if closing blocks on a full socket it is cut off as well
+        schedule(s);
+        try {
+            executor.schedule(() -> cutOff(s), WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException ignored) {
+            // Stopping, shutting the writers down interrupts them
+        }
+    }
+
+    private static class Subscriber {
+        final HttpExchange exchange;
+        final OutputStream out;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+        final AtomicBoolean draining = new AtomicBoolean();
+        final AtomicBoolean closed = new AtomicBoolean();
+        // Start of the write in progress, 0 when not writing, and the thread doing it (guarded by this)
+        volatile long writingSince;
+        Thread writer;
+
+        Subscriber(HttpExchange ex) {
+            this.exchange = ex;
+            this.out = ex.getResponseBody();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.webmap;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the web server
+ * Token bucket per remote address and endpoint class, plus a global cap on
+ * concurrent large transfers, so the web map can never starve the game.
+ */
+public class RateLimiter {
+
+    public enum EndpointClass { PAGE, API, MAP, STREAM, TILE }
+
+    private static final long IDLE_BUCKET_MILLIS = 120000;
+    private static final int SWEEP_EVERY = 1024;
+
+    private final Settings settings;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Semaphore transfers;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong[] limitedByClass = new AtomicLong[EndpointClass.values().length];
+
+    public static class Settings {
+        public boolean enabled = true;
+        public double[] rate = new double[EndpointClass.values().length];
+        public double[] burst = new double[EndpointClass.values().length];
+        public int maxConcurrentTransfers = 2;
+
+        public Settings() {
+            set(EndpointClass.PAGE, 1, 5);
+            set(EndpointClass.API, 10, 20);
+            set(EndpointClass.MAP, 0.2, 3);
+            set(EndpointClass.STREAM, 0.2, 3);
+            set(EndpointClass.TILE, 20, 100);
+        }
+
+        public void set(EndpointClass cls, double perSecond, double burstSize) {
+            rate[cls.ordinal()] = Math.max(0.001, perSecond);
+            burst[cls.ordinal()] = Math.max(1, burstSize);
+        }
+    }
+
+    public RateLimiter(Settings settings) {
+        this.settings = settings;
+        this.transfers = new Semaphore(Math.max(1, settings.maxConcurrentTransfers));
+        for (int i = 0; i < limitedByClass.length; i++) {
+            limitedByClass[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Per-client token bucket for one endpoint class. Answers 429 with Retry-After when empty.
+     */
+    public Filter filter(EndpointClass cls) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+                long n = requests.incrementAndGet();
+                if (settings.enabled) {
+                    long now = System.currentTimeMillis();
+                    if (n % SWEEP_EVERY == 0) sweep(now);
+
+                    String key = clientOf(ex) + "|" + cls.ordinal();
+                    Bucket bucket = buckets.computeIfAbsent(key,
+                        k -> new Bucket(settings.rate[cls.ordinal()], settings.burst[cls.ordinal()], now));
+                    double waitSeconds = bucket.tryTake(now);
+                    if (waitSeconds > 0) {
+                        limited.incrementAndGet();
+                        limitedByClass[cls.ordinal()].incrementAndGet();
+                        reply(ex, 429, "Too many requests", (int) Math.ceil(waitSeconds));
+                        return;
+                    }
+                }
+                chain.doFilter(ex);
+            }
+
+            @Override
+            public String description() {
+                return "WebMap rate limit (" + cls + ")";
+            }
+        };
+    }
+
+    /**
+     * Global cap on concurrent large-file responses. Answers 503 with Retry-After when full.
+     */
+    public Filter transferFilter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+                if (!settings.enabled) {
+                    chain.doFilter(ex);
+                    return;
+                }
+                if (!transfers.tryAcquire()) {
+                    rejected.incrementAndGet();
+                    reply(ex, 503, "Server busy", 5);
+                    return;
+                }
+                try {
+                    chain.doFilter(ex);
+                } finally {
+                    transfers.release();
+                }
+            }
+
+            @Override
+            public String description() {
+                return "WebMap transfer cap";
+            }
+        };
+    }
+
+    public void appendStats(StringBuilder json) {
+        json.append("{\"enabled\":").append(settings.enabled);
+        json.append(",\"requests\":").append(requests.get());
+        json.append(",\"limited\":").append(limited.get());
+        json.append(",\"rejected\":").append(rejected.get());
+        json.append(",\"activeTransfers\":").append(Math.max(1, settings.maxConcurrentTransfers) - transfers.availablePermits());
+        json.append(",\"trackedClients\":").append(buckets.size());
+        json.append(",\"limitedByClass\":{");
+        for (EndpointClass cls : EndpointClass.values()) {
+            if (cls.ordinal() > 0) json.append(",");
+            json.append("\"").append(cls.name().toLowerCase()).append("\":").append(limitedByClass[cls.ordinal()].get());
+        }
+        json.append("}}");
+    }
+
+    private void sweep(long now) {
+        buckets.values().removeIf(b -> b.idleSince(now) > IDLE_BUCKET_MILLIS);
+    }
+
+    private static String clientOf(HttpExchange ex) {
+        InetSocketAddress addr = ex.getRemoteAddress();
+        if (addr == null || addr.getAddress() == null) return "unknown";
+        return addr.getAddress().getHostAddress();
+    }
+
+    static void reply(HttpExchange ex, int status, String msg, int retryAfterSeconds) throws IOException {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.getResponseHeaders().set("Retry-After", String.valueOf(Math.max(1, retryAfterSeconds)));
+        ex.sendResponseHeaders(status, bytes.length);
+        OutputStream os = ex.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    private static class Bucket {
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long last;
+
+        Bucket(double rate, double capacity, long now) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.last = now;
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise seconds until one is available
+         */
+        synchronized double tryTake(long now) {
+            tokens = Math.min(capacity, tokens + (now - last) / 1000.0 * rate);
+            last = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (1 - tokens) / rate;
+        }
+
+        synchronized long idleSince(long now) {
+            return now - last;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.webmap;
+
+import cn.nukkit.plugin.PluginLogger;
+
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Records where players went, one position log per world
+ * A background thread samples the published player snapshot once per marker
+ * interval and appends a record for every player that moved, so the main
+ * thread does no extra work at all.
+ *
+ * Each log is a memory-mapped ring file trails/<world>.trail (big endian):
+ * <pre>
+ *   header  magic, version, capacity, recordSize, written(long), 0, 0   (32 bytes)
+ *   records capacity x { time(long ms), playerId, x, y, z }              (24 bytes each)
+ * </pre>
+ * Record n lives in slot n % capacity; once full the oldest records are
+ * overwritten. The first timestamp of every 1024 record block is kept in
+ * memory, so a time range query starts with a binary search instead of a scan.
+ * Player ids come from trails/players.txt (line number = id) and survive restarts.
+ */
+public class TrailRecorder {
+
+    private static final String NAMES_FILE = "players.txt";
+
+    private final File folder;
+    private final int capacity;
+    private final int intervalSeconds;
+    private final Supplier<PlayerFeed.PlayerSnapshot> source;
+    private final PluginLogger logger;
+
+    private final Map<String, Log> logs = new ConcurrentHashMap<>();
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    // Sampling thread only
+    private final Map<String, PlayerFeed.Entry> lastRecorded = new HashMap<>();
+    private PlayerFeed.PlayerSnapshot lastSnapshot;
+    private Writer namesOut;
+    private String lastError;
+
+    public interface RecordSink {
+        /**
+         * @return false to stop the scan
+         */
+        boolean accept(long time, int x, int y, int z) throws IOException;
+    }
+
+    public TrailRecorder(File folder, int capacity, int intervalSeconds, Supplier<PlayerFeed.PlayerSnapshot> source,
+                         PluginLogger logger) throws IOException {
+        this.folder = folder;
+        // Whole blocks only (the time index works per block), and small enough for one mapping
+        int blocks = Math.max(1, Math.min(Log.MAX_RECORDS, capacity) / Log.BLOCK);
+        this.capacity = blocks * Log.BLOCK;
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+        this.source = source;
+        this.logger = logger;
+
+        folder.mkdirs();
+        File namesFile = new File(folder, NAMES_FILE);
+        if (namesFile.exists()) {
+            for (String name : Files.readAllLines(namesFile.toPath(), StandardCharsets.UTF_8)) {
+                ids.putIfAbsent(name, ids.size());
+            }
+        }
+        namesOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(namesFile, true), StandardCharsets.UTF_8));
+    }
+
+    public void start() {
+        openExisting();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WebMap-Trails");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                sample();
+                lastError = null;
+            } catch (Exception e) {
+                // Keep the schedule alive, the next interval tries again. Log each new error once.
+                String error = String.valueOf(e);
+                if (!error.equals(lastError)) {
+                    lastError = error;
+                    logger.warning("Trail sample failed: " + error);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Log log : logs.values()) log.close();
+        logs.clear();
+        try {
+            namesOut.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Append one record for every player that moved since its last record
+     */
+    void sample() throws IOException {
+        PlayerFeed.PlayerSnapshot snapshot = source.get();
+        if (snapshot == lastSnapshot) return; // The feed publishes a new snapshot only on change
+        lastSnapshot = snapshot;
+
+        long now = System.currentTimeMillis();
+        Set<Log> touched = new HashSet<>();
+        Set<String> present = new HashSet<>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            String name = snapshot.name(i);
+            String world = snapshot.world(i);
+            int x = snapshot.x(i), y = snapshot.y(i), z = snapshot.z(i);
+            present.add(name);
+
+            PlayerFeed.Entry last = lastRecorded.get(name);
+            if (last != null && last.x == x && last.y == y && last.z == z && last.world.equals(world)) continue;
+
+            Log log = log(world);
+            log.append(now, idFor(name), x, y, z);
+            touched.add(log);
+            lastRecorded.put(name, new PlayerFeed.Entry(name, world, x, y, z));
+        }
+        // Rejoining players start a new segment
+        lastRecorded.keySet().retainAll(present);
+
+        for (Log log : touched) log.commit();
+        namesOut.flush();
+    }
+
+    /**
+     * Records of one player between two timestamps (inclusive), grouped by world
+     *
+     * @return false if the sink stopped the scan
+     */
+    public boolean scan(String player, String world, long from, long to, WorldSink sink) throws IOException {
+        Integer id = ids.get(player);
+        if (id == null) return true;
+        for (Map.Entry<String, Log> entry : logs.entrySet()) {
+            if (world != null && !world.equals(entry.getKey())) continue;
+            RecordSink records = sink.world(entry.getKey());
+            if (!entry.getValue().scan(id, from, to, records)) return false;
+        }
+        return true;
+    }
+
+    public interface WorldSink {
+        RecordSink world(String world) throws IOException;
+    }
+
+    /**
+     * Open the logs that already exist on disk, so history from before a restart can be queried
+     */
+    private void openExisting() {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(".trail"));
+        if (files == null) return;
+        for (File f : files) {
+            String world = f.getName().substring(0, f.getName().length() - ".trail".length());
+            try {
+                log(world);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private Log log(String world) throws IOException {
+        Log log = logs.get(world);
+        if (log == null) {
+            log = Log.open(new File(folder, world + ".trail"), capacity);
+            logs.put(world, log);
+        }
+        return log;
+    }
+
+    private int idFor(String name) throws IOException {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = ids.size();
+            ids.put(name, id);
+            namesOut.write(name);
+            namesOut.write('\n');
+        }
+        return id;
+    }
+
+    static class Log {
+        static final int MAGIC = 0x574D5452; // "WMTR"
+        static final int VERSION = 1;
+        static final int HEADER = 32;
+        static final int RECORD = 24;
+        static final int BLOCK = 1024;
+        static final int MAX_RECORDS = 64 * 1024 * 1024;
+
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buf;
+        private final int capacity;
+        private final long[] blockTimes;
+        // Readers trust records below 'written' that 'reserved' has not lapped yet
+        private volatile long written;
+        private volatile long reserved;
+
+        private Log(RandomAccessFile raf, MappedByteBuffer buf, int capacity, long written) {
+            this.raf = raf;
+            this.buf = buf;
+            this.capacity = capacity;
+            this.written = written;
+            this.reserved = written;
+            this.blockTimes = new long[capacity / BLOCK];
+            for (long b = firstBlock(written); b * BLOCK < written; b++) {
+                blockTimes[blockSlot(b)] = buf.getLong(offset(b * BLOCK));
+            }
+        }
+
+        static Log open(File file, int capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long size = HEADER + (long) capacity * RECORD;
+                boolean fresh = raf.length() < HEADER;
+                if (!fresh) {
+                    raf.seek(0);
+                    if (raf.readInt() != MAGIC || raf.readInt() != VERSION
+                            || raf.readInt() != capacity || raf.readInt() != RECORD) {
+                        // Different format or size setting, start over
+                        fresh = true;
+                    }
+                }
+                if (fresh) raf.setLength(0);
+                raf.setLength(size);
+
+                MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (fresh) {
+                    buf.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, capacity).putInt(12, RECORD).putLong(16, 0);
+                }
+                return new Log(raf, buf, capacity, Math.max(0, buf.getLong(16)));
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Writer thread only. Not visible to readers until commit().
+         */
+        void append(long time, int id, int x, int y, int z) {
+            long seq = reserved;
+            reserved = seq + 1;
+            VarHandle.storeStoreFence();
+            int pos = offset(seq);
+            buf.putLong(pos, time);
+            buf.putInt(pos + 8, id);
+            buf.putInt(pos + 12, x);
+            buf.putInt(pos + 16, y);
+            buf.putInt(pos + 20, z);
+            if (seq % BLOCK == 0) blockTimes[blockSlot(seq / BLOCK)] = time;
+        }
+
+        void commit() {
+            buf.putLong(16, reserved);
+            written = reserved;
+        }
+
+        boolean scan(int id, long from, long to, RecordSink sink) throws IOException {
+            long end = written;
+            long seq = Math.max(0, reserved - capacity);
+
+            // Last block starting at or before 'from'
+            long lo = firstBlock(end), hi = (end - 1) / BLOCK;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                if (blockTimes[blockSlot(mid)] <= from) {
+                    seq = mid * BLOCK;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+
+            for (; seq < end; seq++) {
+                int pos = offset(seq);
+                long time = buf.getLong(pos);
+                int recordId = buf.getInt(pos + 8);
+                int x = buf.getInt(pos + 12), y = buf.getInt(pos + 16), z = buf.getInt(pos + 20);
+                VarHandle.loadLoadFence();
+                long lapped = reserved - capacity;
+                if (seq < lapped) {
+                    // Overwritten while we were reading, skip ahead to the oldest live record
+                    seq = lapped - 1;
+                    continue;
+                }
+                if (time > to) break;
+                if (recordId == id && time >= from && !sink.accept(time, x, y, z)) return false;
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                buf.force();
+                raf.close();
+            } catch (IOException ignored) {}
+        }
+
+        private long firstBlock(long end) {
+            long oldest = Math.max(0, end - capacity);
+            return (oldest + BLOCK - 1) / BLOCK;
+        }
+
+        private int blockSlot(long block) {
+            return (int) (block % (capacity / BLOCK));
+        }
+
+        private int offset(long seq) {
+            return HEADER + (int) (seq % capacity) * RECORD;
+        }
+    }
+}
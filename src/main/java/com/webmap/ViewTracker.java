@@ -0,0 +1,73 @@
+package com.webmap;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Map areas web viewers looked at recently
+ * The viewer asks for markers in its visible box whenever it scrolls, and
+ * /api/render is called for a box too; the centers of those boxes tell the
+ * renderer where people are looking. Zoomed out views say little and are
+ * ignored. Thread safe, fed from HTTP threads.
+ */
+public class ViewTracker {
+
+    // Boxes wider than this (blocks) are overviews, not a place of interest
+    private static final int MAX_VIEW_SIZE = 2048;
+    private static final long MAX_AGE_MS = 10 * 60 * 1000;
+    private static final int MAX_VIEWS = 64;
+
+    private static class View {
+        final String world;
+        final int cx, cz;
+        final long time;
+
+        View(String world, int cx, int cz, long time) {
+            this.world = world;
+            this.cx = cx;
+            this.cz = cz;
+            this.time = time;
+        }
+    }
+
+    // Newest first
+    private final Deque<View> views = new ArrayDeque<>();
+
+    public void record(String world, int x1, int z1, int x2, int z2) {
+        if (world == null || (long) x2 - x1 > MAX_VIEW_SIZE || (long) z2 - z1 > MAX_VIEW_SIZE) return;
+        int cx = (int) (((long) x1 + x2) / 2) >> 4;
+        int cz = (int) (((long) z1 + z2) / 2) >> 4;
+        long now = System.currentTimeMillis();
+
+        synchronized (views) {
+            // Scrolling around one place counts once
+            for (Iterator<View> it = views.iterator(); it.hasNext(); ) {
+                View v = it.next();
+                if (v.world.equals(world) && Math.abs(v.cx - cx) <= 4 && Math.abs(v.cz - cz) <= 4) {
+                    it.remove();
+                    break;
+                }
+            }
+            views.addFirst(new View(world, cx, cz, now));
+            while (views.size() > MAX_VIEWS) views.removeLast();
+        }
+    }
+
+    /**
+     * Chunk keys ((cx << 32) | cz) of the views of a world in the last ten minutes, newest first
+     */
+    public long[] recent(String world, int max) {
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MS;
+        long[] keys = new long[max];
+        int n = 0;
+        synchronized (views) {
+            for (View v : views) {
+                if (n == max || v.time < cutoff) break;
+                if (v.world.equals(world)) keys[n++] = (((long) v.cx) << 32) | (v.cz & 0xFFFFFFFFL);
+            }
+        }
+        return Arrays.copyOf(keys, n);
+    }
+}
@@ -0,0 +1,163 @@
+package com.webmap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Crops a block rectangle out of the stored world render
+ * Only the needed rows/columns of the PNG are decoded (with subsampling when
+ * the output is smaller than the source), the Level is never touched.
+ * Results are cached by parameters and identical concurrent requests share one render.
+ */
+public class ViewportRenderer {
+
+    public static final int MAX_OUTPUT = 2048;
+    private static final Color BACKGROUND = new Color(25, 50, 100);
+
+    private final WebMapPlugin plugin;
+    private final long maxCacheBytes;
+
+    private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cacheBytes = 0;
+
+    public ViewportRenderer(WebMapPlugin plugin, long maxCacheBytes) {
+        this.plugin = plugin;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * @return PNG bytes, or null if the world has no render
+     */
+    public byte[] render(String world, int x1, int z1, int x2, int z2, int w, int h) throws IOException {
+        WebMapPlugin.MapInfo info = plugin.getRenderedMaps().get(world);
+        File mapFile = new File(plugin.getMapFolder(), world + ".png");
+        if (info == null || !mapFile.exists()) return null;
+
+        // lastUpdate in the key drops stale entries naturally after a re-render
+        String key = world + "|" + info.lastUpdate + "|" + x1 + "," + z1 + "," + x2 + "," + z2 + "|" + w + "x" + h;
+        synchronized (cache) {
+            byte[] hit = cache.get(key);
+            if (hit != null) return hit;
+        }
+
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Render failed", e.getCause());
+            }
+        }
+
+        try {
+            byte[] png = crop(mapFile, info, x1, z1, x2, z2, w, h);
+            store(key, png);
+            mine.complete(png);
+            return png;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            cacheBytes = 0;
+        }
+    }
+
+    private void store(String key, byte[] png) {
+        if (png.length > maxCacheBytes) return;
+        synchronized (cache) {
+            byte[] old = cache.put(key, png);
+            if (old != null) cacheBytes -= old.length;
+            cacheBytes += png.length;
+            Iterator<byte[]> it = cache.values().iterator();
+            while (cacheBytes > maxCacheBytes && it.hasNext()) {
+                cacheBytes -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    private byte[] crop(File mapFile, WebMapPlugin.MapInfo info, int x1, int z1, int x2, int z2, int w, int h) throws IOException {
+        double pxPerBlockX = (double) info.width / Math.max(1, info.blockMaxX - info.blockMinX);
+        double pxPerBlockZ = (double) info.height / Math.max(1, info.blockMaxZ - info.blockMinZ);
+
+        // Requested rectangle in source pixels (may extend past the image)
+        double srcX1 = (x1 - info.blockMinX) * pxPerBlockX;
+        double srcZ1 = (z1 - info.blockMinZ) * pxPerBlockZ;
+        double srcX2 = (x2 - info.blockMinX) * pxPerBlockX;
+        double srcZ2 = (z2 - info.blockMinZ) * pxPerBlockZ;
+
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = out.createGraphics();
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, w, h);
+
+        int ix1 = Math.max(0, (int) Math.floor(srcX1));
+        int iz1 = Math.max(0, (int) Math.floor(srcZ1));
+        int ix2 = Math.min(info.width, (int) Math.ceil(srcX2));
+        int iz2 = Math.min(info.height, (int) Math.ceil(srcZ2));
+
+        if (ix2 > ix1 && iz2 > iz1) {
+            double outPerSrcX = w / (srcX2 - srcX1);
+            double outPerSrcZ = h / (srcZ2 - srcZ1);
+            int dx1 = (int) Math.round((ix1 - srcX1) * outPerSrcX);
+            int dz1 = (int) Math.round((iz1 - srcZ1) * outPerSrcZ);
+            int dx2 = (int) Math.round((ix2 - srcX1) * outPerSrcX);
+            int dz2 = (int) Math.round((iz2 - srcZ1) * outPerSrcZ);
+
+            // Skip source pixels that would be scaled away anyway
+            int stepX = Math.max(1, (int) ((ix2 - ix1) / Math.max(1.0, dx2 - dx1)));
+            int stepZ = Math.max(1, (int) ((iz2 - iz1) / Math.max(1.0, dz2 - dz1)));
+
+            BufferedImage region = readRegion(mapFile, new Rectangle(ix1, iz1, ix2 - ix1, iz2 - iz1), stepX, stepZ);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(region, dx1, dz1, dx2 - dx1, dz2 - dz1, null);
+        }
+        g.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(out, "PNG", bytes);
+        return bytes.toByteArray();
+    }
+
+    private BufferedImage readRegion(File file, Rectangle rect, int stepX, int stepZ) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) throw new IOException("No reader for " + file.getName());
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(rect);
+                param.setSourceSubsampling(stepX, stepZ, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.webmap;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Scaled map wall pieces on disk, so walls come back without decoding the world image
+ * Every record holds one 128x128 piece as raw RGBA together with its map id
+ * and the version of the image it was scaled from; a record of another
+ * version counts as missing. The index (map id -> record) is rebuilt from the
+ * record headers when the file is opened. Thread safe.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   header  magic, version                                  (2 ints)
+ *   record  mapId, sourceVersion (2 longs), 128 * 128 * 4 RGBA bytes
+ * </pre>
+ * A record with map id 0 is free and reused for the next new piece.
+ */
+public class WallPieceFile {
+
+    private static final int MAGIC = 0x574D5750; // "WMWP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int PIECE_BYTES = 128 * 128 * 4;
+    private static final int RECORD_BYTES = 16 + PIECE_BYTES;
+
+    // Image path -> lastModified, length, checksum
+    private static final Map<String, long[]> sourceVersions = new ConcurrentHashMap<>();
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    // Map id -> 1-based record
+    private final LongIntMap records;
+    // Source version per record, 0 = free
+    private long[] versions;
+    private int recordCount;
+    private int[] free = new int[16];
+    private int freeCount;
+
+    private WallPieceFile(RandomAccessFile raf, LongIntMap records, long[] versions, int recordCount) {
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.records = records;
+        this.versions = versions;
+        this.recordCount = recordCount;
+        for (int i = 1; i <= recordCount; i++) {
+            if (versions[i] == 0) addFree(i);
+        }
+    }
+
+    public static WallPieceFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            if (raf.length() < HEADER_BYTES) {
+                raf.setLength(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                ch.write(header, 0);
+                return new WallPieceFile(raf, new LongIntMap(64), new long[64], 0);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            ch.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a wall piece file: " + file.getName());
+            }
+
+            // A record cut short by a crash is dropped
+            int count = (int) Math.min(Integer.MAX_VALUE - 1, (raf.length() - HEADER_BYTES) / RECORD_BYTES);
+            LongIntMap records = new LongIntMap(count);
+            long[] versions = new long[count + 1];
+            ByteBuffer entry = ByteBuffer.allocate(16);
+            for (int i = 1; i <= count; i++) {
+                entry.clear();
+                readFully(ch, entry, recordOffset(i));
+                long mapId = entry.getLong(0);
+                long version = entry.getLong(8);
+                // Ids are never 0; a duplicate id keeps the later record
+                if (mapId == 0 || version == 0) continue;
+                int previous = records.get(mapId);
+                if (previous != 0) versions[previous] = 0;
+                records.put(mapId, i);
+                versions[i] = version;
+            }
+            raf.setLength(HEADER_BYTES + (long) count * RECORD_BYTES);
+            return new WallPieceFile(raf, records, versions, count);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the stored piece, or null if there is none for this source version
+     */
+    public synchronized BufferedImage get(long mapId, long sourceVersion) throws IOException {
+        int record = records.get(mapId);
+        if (record == 0 || versions[record] != sourceVersion) return null;
+
+        ByteBuffer buf = ByteBuffer.allocate(PIECE_BYTES);
+        readFully(channel, buf, recordOffset(record) + 16);
+        byte[] rgba = buf.array();
+        int[] argb = new int[128 * 128];
+        for (int i = 0, p = 0; i < argb.length; i++, p += 4) {
+            argb[i] = ((rgba[p + 3] & 0xFF) << 24) | ((rgba[p] & 0xFF) << 16)
+                    | ((rgba[p + 1] & 0xFF) << 8) | (rgba[p + 2] & 0xFF);
+        }
+        BufferedImage piece = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
+        piece.setRGB(0, 0, 128, 128, argb, 0, 128);
+        return piece;
+    }
+
+    public synchronized boolean contains(long mapId, long sourceVersion) {
+        int record = records.get(mapId);
+        return record != 0 && versions[record] == sourceVersion;
+    }
+
+    /**
+     * Store a piece, replacing whatever was stored for the map id
+     */
+    public synchronized void put(long mapId, long sourceVersion, BufferedImage piece) throws IOException {
+        if (mapId == 0 || sourceVersion == 0) throw new IllegalArgumentException("Reserved id or version");
+        int record = records.get(mapId);
+        if (record == 0) {
+            record = freeCount > 0 ? free[--freeCount] : ++recordCount;
+            if (record >= versions.length) versions = Arrays.copyOf(versions, versions.length * 2);
+        }
+
+        int[] argb = piece.getRGB(0, 0, 128, 128, null, 0, 128);
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES);
+        buf.putLong(mapId).putLong(sourceVersion);
+        for (int c : argb) {
+            buf.put((byte) (c >> 16)).put((byte) (c >> 8)).put((byte) c).put((byte) (c >>> 24));
+        }
+        buf.flip();
+        long pos = recordOffset(record);
+        while (buf.hasRemaining()) channel.write(buf, pos + buf.position());
+
+        records.put(mapId, record);
+        versions[record] = sourceVersion;
+    }
+
+    /**
+     * Free the records of map ids that are not listed, e.g. pieces of removed walls
+     */
+    public synchronized void retain(Set<Long> mapIds) throws IOException {
+        long[] stale = new long[records.size()];
+        int[] n = {0};
+        records.forEach((mapId, record) -> {
+            if (record != 0 && !mapIds.contains(mapId)) stale[n[0]++] = mapId;
+        });
+        ByteBuffer zero = ByteBuffer.allocate(16);
+        for (int i = 0; i < n[0]; i++) {
+            int record = records.get(stale[i]);
+            zero.clear();
+            channel.write(zero, recordOffset(record));
+            records.remove(stale[i]);
+            versions[record] = 0;
+            addFree(record);
+        }
+    }
+
+    /**
+     * Number of pieces stored
+     */
+    public synchronized int size() {
+        return recordCount - freeCount;
+    }
+
+    public void close() {
+        try {
+            raf.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Version of an image file's content, a checksum of its bytes
+     * Never 0. A render that writes the same image again keeps the version, so
+     * stored pieces stay valid. Checksums are remembered until the file changes.
+     */
+    public static long sourceVersion(File image) throws IOException {
+        long modified = image.lastModified();
+        long length = image.length();
+        long[] known = sourceVersions.get(image.getPath());
+        if (known != null && known[0] == modified && known[1] == length) return known[2];
+
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(image))) {
+            int read;
+            while ((read = in.read(buf)) > 0) crc.update(buf, 0, read);
+        }
+        long version = (length << 32) ^ crc.getValue();
+        if (version == 0) version = 1;
+        sourceVersions.put(image.getPath(), new long[] {modified, length, version});
+        return version;
+    }
+
+    private void addFree(int record) {
+        if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = record;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) throw new IOException("Unexpected end of wall piece file");
+        }
+    }
+
+    private static long recordOffset(int record) {
+        return HEADER_BYTES + (long) (record - 1) * RECORD_BYTES;
+    }
+}
@@ -1,23 +1,30 @@
 package com.webmap;
 
 import cn.nukkit.Player;
+import cn.nukkit.Server;
 import cn.nukkit.command.Command;
 import cn.nukkit.command.CommandSender;
 import cn.nukkit.event.EventHandler;
+import cn.nukkit.event.EventPriority;
 import cn.nukkit.event.Listener;
+import cn.nukkit.event.level.ChunkLoadEvent;
+import cn.nukkit.event.level.ChunkUnloadEvent;
 import cn.nukkit.event.player.PlayerJoinEvent;
 import cn.nukkit.event.player.PlayerMapInfoRequestEvent;
 import cn.nukkit.item.ItemMap;
 import cn.nukkit.level.Level;
-import cn.nukkit.network.protocol.ClientboundMapItemDataPacket;
 import cn.nukkit.plugin.PluginBase;
+import cn.nukkit.scheduler.AsyncTask;
 import cn.nukkit.scheduler.Task;
 import cn.nukkit.utils.TextFormat;
 
 import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WebMapPlugin extends PluginBase implements Listener {
 
@@ -28,9 +35,35 @@ public class WebMapPlugin extends PluginBase implements Listener {
     private int webPort = 8123;
     private int renderIntervalHours = 24;
     private int markerUpdateSeconds = 2;
+    private int wallViewRadius = 64;
+    private int wallKbPerSecond = 2048;
+    private int streamMaxSubscribers = 200;
+    private int playerSnapshotTicks = 10;
+    private PlayerFeed playerFeed;
+    private final MarkerIndex markerIndex = new MarkerIndex();
+    private final ViewTracker viewTracker = new ViewTracker();
+    private RateLimiter.Settings rateLimitSettings;
+    private int renderCacheMb = 32;
+    private int mapPacketCacheMb = 64;
+    private int wallPieceCacheMb = 128;
+    private MapPacketCache mapPacketCache;
+    private TrailRecorder trailRecorder;
+    private ActivityHeatmap activityHeatmap;
+    private ChunkPatcher chunkPatcher;
+    private LoadGovernor loadGovernor;
     
-    private Map<String, MapInfo> renderedMaps = new HashMap<>();
-    private Map<Long, BufferedImage> mapImages = new HashMap<>();
+    // Held while a map image is replaced and its MapInfo published
+    private final Object mapLock = new Object();
+    // World being fully rendered on the main thread, its chunk loads are not patched
+    private String renderingWorld;
+    
+    // Renders run one at a time in slices of main thread time, see stepRender
+    private final Deque<PendingRender> renderQueue = new ArrayDeque<>();
+    private volatile PendingRender currentRender;
+    
+    private Map<String, MapInfo> renderedMaps = new ConcurrentHashMap<>();
+    private Map<String, ColumnStore> columnStores = new ConcurrentHashMap<>();
+    private Map<String, ChunkCoverage> coverages = new ConcurrentHashMap<>();
     
     // Region settings per world
     private Map<String, RegionConfig> regionConfigs = new HashMap<>();
@@ -56,6 +89,18 @@ public class WebMapPlugin extends PluginBase implements Listener {
         }
     }
     
+    private static class PendingRender {
+        final String worldName;
+        final List<Runnable> callbacks = new ArrayList<>();
+        MapRenderer.Job job;
+        // Finished drawing, the image is being written
+        boolean publishing;
+        
+        PendingRender(String worldName) {
+            this.worldName = worldName;
+        }
+    }
+    
     @Override
     public void onEnable() {
         saveDefaultConfig();
@@ -63,22 +108,47 @@ public class WebMapPlugin extends PluginBase implements Listener {
         webPort = getConfig().getInt("web-port", 8123);
         renderIntervalHours = getConfig().getInt("render-interval-hours", 24);
         markerUpdateSeconds = getConfig().getInt("marker-update-seconds", 2);
+        wallViewRadius = getConfig().getInt("wall-view-radius", 64);
+        wallKbPerSecond = getConfig().getInt("wall-kb-per-second", 2048);
+        streamMaxSubscribers = getConfig().getInt("stream-max-subscribers", 200);
+        playerSnapshotTicks = getConfig().getInt("player-snapshot-ticks", 10);
+        renderCacheMb = getConfig().getInt("render-cache-mb", 32);
+        mapPacketCacheMb = getConfig().getInt("map-packet-cache-mb", 64);
+        wallPieceCacheMb = getConfig().getInt("wall-piece-cache-mb", 128);
         
         // Validate
         if (renderIntervalHours < 0) renderIntervalHours = 0;
         if (markerUpdateSeconds < 1) markerUpdateSeconds = 1;
         if (markerUpdateSeconds > 60) markerUpdateSeconds = 60;
+        if (wallViewRadius < 1) wallViewRadius = 1;
+        if (wallKbPerSecond < 16) wallKbPerSecond = 16;
+        if (streamMaxSubscribers < 0) streamMaxSubscribers = 0;
+        if (playerSnapshotTicks < 1) playerSnapshotTicks = 1;
+        if (renderCacheMb < 0) renderCacheMb = 0;
+        if (mapPacketCacheMb < 0) mapPacketCacheMb = 0;
+        if (wallPieceCacheMb < 0) wallPieceCacheMb = 0;
+        
+        mapPacketCache = new MapPacketCache(mapPacketCacheMb * 1024L * 1024L);
+        
+        playerFeed = new PlayerFeed(
+            getConfig().getInt("delta-move-threshold", 2),
+            getConfig().getInt("delta-history", 64));
         
         mapFolder = new File(getDataFolder(), "maps");
         if (!mapFolder.exists()) {
             mapFolder.mkdirs();
         }
         
+        rateLimitSettings = loadRateLimitSettings();
+        
         // Load region configs from config
         loadRegionConfigs();
         
         // Load worlds to render
         loadRenderWorlds();
+        for (String worldName : renderWorlds) {
+            getCoverage(worldName);
+        }
         
         mapRenderer = new MapRenderer(this);
         inGameMapWall = new InGameMapWall(this);
@@ -94,15 +164,67 @@ public class WebMapPlugin extends PluginBase implements Listener {
         }
         
         inGameMapWall.startScheduler();
+        // Saved walls show their stored pieces until the startup render is done
+        inGameMapWall.refreshLoadedWalls();
+        
+        // Position history for /api/trails, sampled off the main thread
+        if (getConfig().getBoolean("trail-enabled", true)) {
+            try {
+                trailRecorder = new TrailRecorder(new File(getDataFolder(), "trails"),
+                    getConfig().getInt("trail-max-records", 1000000), markerUpdateSeconds,
+                    () -> playerFeed.getSnapshot(), getLogger());
+                trailRecorder.start();
+            } catch (Exception e) {
+                getLogger().warning("Trail recording disabled: " + e.getMessage());
+                trailRecorder = null;
+            }
+        }
+        
+        // Scale render slices, wall updates and packet batches to server health
+        loadGovernor = new LoadGovernor(loadThrottleSettings());
+        getServer().getScheduler().scheduleRepeatingTask(this, new Task() {
+            @Override
+            public void onRun(int tick) {
+                loadGovernor.sample(getServer());
+            }
+        }, 20);
+        getServer().getScheduler().scheduleRepeatingTask(this, new Task() {
+            @Override
+            public void onRun(int tick) {
+                stepRender();
+            }
+        }, 1);
+        
+        // Render chunks players load anyway, between full renders
+        if (getConfig().getBoolean("opportunistic-render", false)) {
+            chunkPatcher = new ChunkPatcher(this, mapRenderer,
+                getConfig().getInt("opportunistic-min-age-minutes", 10),
+                getConfig().getInt("opportunistic-flush-seconds", 300));
+            chunkPatcher.start();
+        }
+        
+        if (getConfig().getBoolean("heatmap-enabled", true)) {
+            activityHeatmap = new ActivityHeatmap(new File(getDataFolder(), "heatmap"), markerUpdateSeconds,
+                getConfig().getDouble("heatmap-half-life-days", 7), () -> playerFeed.getSnapshot(), getLogger());
+            activityHeatmap.start();
+        }
+        
+        // Publish player positions for the web server (main thread read, HTTP threads only see the snapshot)
+        getServer().getScheduler().scheduleRepeatingTask(this, new Task() {
+            @Override
+            public void onRun(int tick) {
+                playerFeed.publish(getOnlinePlayers());
+                markerIndex.syncPlayers(playerFeed.getSnapshot());
+            }
+        }, playerSnapshotTicks);
         
         // Auto render on startup (delay 5 seconds for world loading)
         getServer().getScheduler().scheduleDelayedTask(this, new Task() {
             @Override
             public void onRun(int tick) {
                 getLogger().info("Auto rendering maps on startup...");
-                renderAllWorlds();
                 // Refresh saved walls after render
-                inGameMapWall.refreshLoadedWalls();
+                renderAllWorlds(() -> inGameMapWall.refreshLoadedWalls());
             }
         }, 100); // 5 seconds delay
         
@@ -113,8 +235,7 @@ public class WebMapPlugin extends PluginBase implements Listener {
                 @Override
                 public void onRun(int tick) {
                     getLogger().info("Scheduled auto render (" + renderIntervalHours + "h interval)...");
-                    renderAllWorlds();
-                    inGameMapWall.clearCache();
+                    renderAllWorlds(() -> inGameMapWall.clearCache());
                 }
             }, intervalTicks, intervalTicks);
             getLogger().info("Auto render: every " + renderIntervalHours + " hours");
@@ -130,6 +251,88 @@ public class WebMapPlugin extends PluginBase implements Listener {
         return markerUpdateSeconds;
     }
     
+    /**
+     * Default distance (blocks) from which new walls receive updates
+     */
+    public int getWallViewRadius() {
+        return wallViewRadius;
+    }
+    
+    /**
+     * Map wall data each player may receive per second, in encoded (uncompressed) bytes
+     */
+    public int getWallBytesPerSecond() {
+        return wallKbPerSecond * 1024;
+    }
+    
+    /**
+     * Memory for the pieces shown on map walls, least recently used pieces are rebuilt when needed
+     */
+    public int getWallPieceCacheMb() {
+        return wallPieceCacheMb;
+    }
+    
+    public int getStreamMaxSubscribers() {
+        return streamMaxSubscribers;
+    }
+    
+    public long getRenderCacheBytes() {
+        return renderCacheMb * 1024L * 1024L;
+    }
+    
+    public RateLimiter.Settings getRateLimitSettings() {
+        return rateLimitSettings;
+    }
+    
+    /**
+     * Null when trail recording is disabled
+     */
+    public TrailRecorder getTrailRecorder() {
+        return trailRecorder;
+    }
+    
+    /**
+     * Null when the heatmap is disabled
+     */
+    public ActivityHeatmap getActivityHeatmap() {
+        return activityHeatmap;
+    }
+    
+    public LoadGovernor getLoadGovernor() {
+        return loadGovernor;
+    }
+    
+    private LoadGovernor.Settings loadThrottleSettings() {
+        LoadGovernor.Settings settings = new LoadGovernor.Settings();
+        settings.enabled = getConfig().getBoolean("throttle.enabled", true);
+        settings.renderSliceMs = getConfig().getDouble("throttle.render-slice-ms", settings.renderSliceMs);
+        settings.wallBuildSliceMs = getConfig().getDouble("throttle.wall-build-ms", settings.wallBuildSliceMs);
+        settings.reduceTps = getConfig().getDouble("throttle.reduce-tps", settings.reduceTps);
+        settings.minimalTps = getConfig().getDouble("throttle.minimal-tps", settings.minimalTps);
+        settings.pauseTps = getConfig().getDouble("throttle.pause-tps", settings.pauseTps);
+        settings.reduceTickUsage = getConfig().getDouble("throttle.reduce-tick-usage", settings.reduceTickUsage);
+        settings.recoverSeconds = getConfig().getInt("throttle.recover-seconds", settings.recoverSeconds);
+        
+        // Validate
+        if (settings.renderSliceMs < 1) settings.renderSliceMs = 1;
+        if (settings.wallBuildSliceMs < 1) settings.wallBuildSliceMs = 1;
+        if (settings.recoverSeconds < 1) settings.recoverSeconds = 1;
+        return settings;
+    }
+    
+    private RateLimiter.Settings loadRateLimitSettings() {
+        RateLimiter.Settings settings = new RateLimiter.Settings();
+        settings.enabled = getConfig().getBoolean("rate-limit.enabled", true);
+        settings.maxConcurrentTransfers = getConfig().getInt("rate-limit.max-concurrent-transfers", 2);
+        for (RateLimiter.EndpointClass cls : RateLimiter.EndpointClass.values()) {
+            String prefix = "rate-limit." + cls.name().toLowerCase() + ".";
+            settings.set(cls,
+                getConfig().getDouble(prefix + "per-second", settings.rate[cls.ordinal()]),
+                getConfig().getDouble(prefix + "burst", settings.burst[cls.ordinal()]));
+        }
+        return settings;
+    }
+    
     private void loadRegionConfigs() {
         if (getConfig().exists("regions")) {
             for (String world : getConfig().getSection("regions").getKeys(false)) {
@@ -175,13 +378,23 @@ public class WebMapPlugin extends PluginBase implements Listener {
         if (event.getMap() instanceof ItemMap) {
             ItemMap map = (ItemMap) event.getMap();
             long mapId = map.getMapId();
-            BufferedImage img = mapImages.get(mapId);
-            if (img != null) {
-                sendMapImage(event.getPlayer(), mapId, img);
+            MapPieceStore.Piece piece = inGameMapWall.getPiece(event.getPlayer(), mapId);
+            if (piece != null) {
+                sendMapImage(event.getPlayer(), mapId, piece);
             }
         }
     }
     
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        if (chunkPatcher != null) chunkPatcher.offer(event.getLevel(), event.getChunk());
+    }
+    
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        if (chunkPatcher != null) chunkPatcher.offer(event.getLevel(), event.getChunk());
+    }
+    
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
@@ -193,18 +406,10 @@ public class WebMapPlugin extends PluginBase implements Listener {
         }, 100);
     }
     
-    public void sendMapImage(Player player, long mapId, BufferedImage img) {
+    public void sendMapImage(Player player, long mapId, MapPieceStore.Piece piece) {
         try {
-            ClientboundMapItemDataPacket pk = new ClientboundMapItemDataPacket();
-            pk.mapId = mapId;
-            pk.update = 2;
-            pk.scale = 0;
-            pk.width = 128;
-            pk.height = 128;
-            pk.offsetX = 0;
-            pk.offsetZ = 0;
-            pk.image = img;
-            player.dataPacket(pk);
+            // Shared by every player shown this piece, encoded once
+            player.dataPacket(mapPacketCache.get(mapId, piece));
         } catch (Exception e) {
             getLogger().error("Send map failed: " + e.getMessage());
         }
@@ -213,6 +418,14 @@ public class WebMapPlugin extends PluginBase implements Listener {
     @Override
     public void onDisable() {
         if (webServer != null) webServer.stop();
+        if (trailRecorder != null) trailRecorder.stop();
+        if (activityHeatmap != null) activityHeatmap.stop();
+        if (chunkPatcher != null) chunkPatcher.stop();
+        if (currentRender != null && !currentRender.publishing) currentRender.job.abort();
+        if (inGameMapWall != null) inGameMapWall.close();
+        for (ColumnStore store : columnStores.values()) store.close();
+        columnStores.clear();
+        for (String worldName : coverages.keySet()) saveCoverage(worldName);
     }
     
     @Override
@@ -225,6 +438,8 @@ public class WebMapPlugin extends PluginBase implements Listener {
             sender.sendMessage("/webmap render - Render map");
             sender.sendMessage("/webmap wall <size> - Create map wall (1-100)");
             sender.sendMessage("/webmap removewall - Remove map wall");
+            sender.sendMessage("/webmap cancelwall - Stop building the map wall");
+            sender.sendMessage("/webmap wallradius <blocks> - Set wall view distance");
             sender.sendMessage(TextFormat.AQUA + "--- Region Limit ---");
             sender.sendMessage("/webmap setcenter - Step 1: Set center point");
             sender.sendMessage("/webmap setradius - Step 2: Set radius point");
@@ -242,14 +457,10 @@ public class WebMapPlugin extends PluginBase implements Listener {
                 return true;
             }
             sender.sendMessage(TextFormat.YELLOW + "Rendering...");
-            getServer().getScheduler().scheduleTask(this, new Task() {
-                @Override
-                public void onRun(int tick) {
-                    renderAllWorlds();
-                    sender.sendMessage(TextFormat.GREEN + "Done!");
-                    inGameMapWall.clearCache();
-                    inGameMapWall.refreshLoadedWalls(); // Refresh walls with new image
-                }
+            renderAllWorlds(() -> {
+                sender.sendMessage(TextFormat.GREEN + "Done!");
+                inGameMapWall.clearCache();
+                inGameMapWall.refreshLoadedWalls(); // Refresh walls with new image
             });
             return true;
         }
@@ -281,6 +492,46 @@ public class WebMapPlugin extends PluginBase implements Listener {
             return true;
         }
         
+        if (subCmd.equals("cancelwall") && sender instanceof Player) {
+            if (!sender.isOp()) {
+                sender.sendMessage(TextFormat.RED + "OP only");
+                return true;
+            }
+            String world = ((Player) sender).getLevel().getName();
+            if (inGameMapWall.cancelBuild(world)) {
+                sender.sendMessage(TextFormat.GREEN + "Map wall building cancelled for " + world);
+                sender.sendMessage(TextFormat.GRAY + "(Blocks placed so far remain, wall data removed)");
+            } else {
+                sender.sendMessage(TextFormat.RED + "No map wall is being built in " + world);
+            }
+            return true;
+        }
+        
+        if (subCmd.equals("wallradius") && sender instanceof Player) {
+            if (!sender.isOp()) {
+                sender.sendMessage(TextFormat.RED + "OP only");
+                return true;
+            }
+            int radius;
+            try {
+                radius = Integer.parseInt(args.length > 1 ? args[1] : "");
+            } catch (NumberFormatException e) {
+                sender.sendMessage(TextFormat.RED + "Usage: /webmap wallradius <blocks>");
+                return true;
+            }
+            if (radius < 1 || radius > 1000) {
+                sender.sendMessage(TextFormat.RED + "Radius: 1-1000");
+                return true;
+            }
+            String world = ((Player) sender).getLevel().getName();
+            if (inGameMapWall.setViewRadius(world, radius)) {
+                sender.sendMessage(TextFormat.GREEN + "Wall in " + world + " now visible within " + radius + " blocks");
+            } else {
+                sender.sendMessage(TextFormat.RED + "No map wall in " + world);
+            }
+            return true;
+        }
+        
         // ============ Region Commands ============
         
         if (subCmd.equals("setcenter") && sender instanceof Player) {
@@ -368,13 +619,9 @@ public class WebMapPlugin extends PluginBase implements Listener {
             sender.sendMessage(TextFormat.GRAY + "Size: " + sideLength + " x " + sideLength + " blocks");
             sender.sendMessage(TextFormat.YELLOW + "Rendering map...");
             
-            getServer().getScheduler().scheduleTask(this, new Task() {
-                @Override
-                public void onRun(int tick) {
-                    renderWorld(p.getLevel());
-                    sender.sendMessage(TextFormat.GREEN + "Map rendered!");
-                    inGameMapWall.clearCache(); // Force reload fresh images
-                }
+            renderWorld(p.getLevel(), () -> {
+                sender.sendMessage(TextFormat.GREEN + "Map rendered!");
+                inGameMapWall.clearCache(); // Force reload fresh images
             });
             return true;
         }
@@ -431,61 +678,287 @@ public class WebMapPlugin extends PluginBase implements Listener {
         return false;
     }
     
-    public void renderAllWorlds() {
+    /**
+     * Queue a render of every configured world, onDone runs on the main thread once all of them finished
+     */
+    public void renderAllWorlds(Runnable onDone) {
+        List<Level> levels = new ArrayList<>();
         for (String worldName : renderWorlds) {
             Level level = getServer().getLevelByName(worldName);
             if (level != null) {
-                renderWorld(level);
+                levels.add(level);
             } else {
                 getLogger().warning("World not found: " + worldName);
             }
         }
+        if (levels.isEmpty()) {
+            if (onDone != null) onDone.run();
+            return;
+        }
+        
+        int[] remaining = {levels.size()};
+        Runnable each = onDone == null ? null : () -> {
+            if (--remaining[0] == 0) onDone.run();
+        };
+        for (Level level : levels) {
+            renderWorld(level, each);
+        }
     }
     
-    public void renderWorld(Level level) {
+    /**
+     * Queue a render of one world, a world already waiting is not queued twice
+     */
+    public void renderWorld(Level level, Runnable onDone) {
         String worldName = level.getName();
+        for (PendingRender queued : renderQueue) {
+            if (queued.worldName.equals(worldName)) {
+                if (onDone != null) queued.callbacks.add(onDone);
+                return;
+            }
+        }
+        PendingRender render = new PendingRender(worldName);
+        if (onDone != null) render.callbacks.add(onDone);
+        renderQueue.add(render);
+    }
+    
+    /**
+     * Every tick: give the current render the slice the load governor allows, starting the next one if idle
+     */
+    private void stepRender() {
+        PendingRender render = currentRender;
+        if (render == null) {
+            render = renderQueue.poll();
+            if (render == null) return;
+            if (!startRender(render)) {
+                finishRender(render);
+                return;
+            }
+        }
+        if (render.publishing) return;
+        
+        long budget = loadGovernor.renderBudgetNanos();
+        if (budget <= 0) return;
+        
+        try {
+            if (!render.job.step(budget)) {
+                Map<Long, long[]> hot = render.job.takeHotColumns();
+                if (hot != null) publishHotChunks(render.worldName, hot);
+                return;
+            }
+        } catch (Exception e) {
+            getLogger().error("Render failed: " + e.getMessage());
+            e.printStackTrace();
+            render.job.abort();
+            finishRender(render);
+            return;
+        }
+        publishRender(render, render.job.getResult());
+    }
+    
+    private boolean startRender(PendingRender render) {
+        String worldName = render.worldName;
+        Level level = getServer().getLevelByName(worldName);
+        if (level == null) {
+            getLogger().warning("World not found: " + worldName);
+            return false;
+        }
         getLogger().info("Rendering: " + worldName);
         
         try {
             RegionConfig rc = regionConfigs.get(worldName);
-            MapRenderer.RenderResult result;
-            
             if (rc != null && rc.enabled) {
                 getLogger().info("Using region limit: center(" + rc.centerX + "," + rc.centerZ + ") radius=" + rc.radius);
-                result = mapRenderer.renderRegion(level, rc.centerX, rc.centerZ, rc.radius);
+                render.job = mapRenderer.startRegion(level, rc.centerX, rc.centerZ, rc.radius);
             } else {
-                result = mapRenderer.renderLevelWithInfo(level);
-            }
-            
-            if (result != null && result.image != null) {
-                File imageFile = new File(mapFolder, worldName + ".png");
-                ImageIO.write(result.image, "PNG", imageFile);
-                
-                MapInfo info = new MapInfo();
-                info.worldName = worldName;
-                info.width = result.image.getWidth();
-                info.height = result.image.getHeight();
-                info.lastUpdate = System.currentTimeMillis();
-                info.blockMinX = result.minBlockX;
-                info.blockMaxX = result.maxBlockX;
-                info.blockMinZ = result.minBlockZ;
-                info.blockMaxZ = result.maxBlockZ;
-                info.centerX = (result.minBlockX + result.maxBlockX) / 2;
-                info.centerZ = (result.minBlockZ + result.maxBlockZ) / 2;
-                renderedMaps.put(worldName, info);
-                
-                getLogger().info("Rendered: " + result.image.getWidth() + "x" + result.image.getHeight());
+                render.job = mapRenderer.startFull(level);
             }
         } catch (Exception e) {
             getLogger().error("Render failed: " + e.getMessage());
             e.printStackTrace();
+            return false;
+        }
+        currentRender = render;
+        renderingWorld = worldName;
+        return true;
+    }
+    
+    private void publishRender(PendingRender render, MapRenderer.RenderResult result) {
+        render.publishing = true;
+        if (result == null || result.image == null) {
+            finishRender(render);
+            return;
+        }
+        
+        String worldName = render.worldName;
+        MapInfo info = new MapInfo();
+        info.worldName = worldName;
+        info.width = result.image.getWidth();
+        info.height = result.image.getHeight();
+        info.lastUpdate = System.currentTimeMillis();
+        info.blockMinX = result.minBlockX;
+        info.blockMaxX = result.maxBlockX;
+        info.blockMinZ = result.minBlockZ;
+        info.blockMaxZ = result.maxBlockZ;
+        info.centerX = (result.minBlockX + result.maxBlockX) / 2;
+        info.centerZ = (result.minBlockZ + result.maxBlockZ) / 2;
+        info.pixelsPerBlock = result.pixelsPerBlock;
+        
+        // Encoding a large PNG takes seconds, keep it off the main thread
+        getServer().getScheduler().scheduleAsyncTask(this, new AsyncTask() {
+            @Override
+            public void onRun() {
+                try {
+                    // Chunk patches check the published MapInfo under the same lock before swapping the image
+                    synchronized (mapLock) {
+                        File imageFile = new File(mapFolder, worldName + ".png");
+                        ImageIO.write(result.image, "PNG", imageFile);
+                        installColumnStore(worldName, result.columns);
+                        renderedMaps.put(worldName, info);
+                        // Later chunk patches draw into this image instead of decoding the file
+                        if (chunkPatcher != null) ChunkPatcher.adopt(worldName, info, result.image);
+                    }
+                    saveCoverage(worldName);
+                    
+                    getLogger().info("Rendered: " + result.image.getWidth() + "x" + result.image.getHeight());
+                } catch (Exception e) {
+                    getLogger().error("Render failed: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+            
+            @Override
+            public void onCompletion(Server server) {
+                finishRender(render);
+            }
+        });
+    }
+    
+    /**
+     * Draw the area around players into the current map while the rest of the render continues
+     */
+    private void publishHotChunks(String worldName, Map<Long, long[]> hot) {
+        if (!renderedMaps.containsKey(worldName)) return;
+        getServer().getScheduler().scheduleAsyncTask(this, new AsyncTask() {
+            @Override
+            public void onRun() {
+                try {
+                    int drawn = ChunkPatcher.apply(WebMapPlugin.this, mapRenderer, worldName, hot);
+                    getLogger().info("Published " + drawn + " chunks near players early");
+                } catch (Exception e) {
+                    getLogger().warning("Early publish failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+    
+    private void finishRender(PendingRender render) {
+        if (currentRender == render) {
+            currentRender = null;
+            renderingWorld = null;
+        }
+        for (Runnable callback : render.callbacks) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                getLogger().warning("Render callback failed: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Replace the served column data of a world with the one written by the last render
+     */
+    private synchronized void installColumnStore(String worldName, ColumnStore fresh) {
+        File tmp = new File(mapFolder, worldName + ".columns.tmp");
+        if (fresh == null) {
+            tmp.delete();
+            return;
+        }
+        fresh.close();
+        
+        // Close before moving, Windows refuses to replace open files
+        ColumnStore old = columnStores.remove(worldName);
+        if (old != null) old.close();
+        
+        File target = new File(mapFolder, worldName + ".columns");
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            columnStores.put(worldName, ColumnStore.open(target));
+        } catch (IOException e) {
+            getLogger().warning("Column data install failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Column data of the last render, opened on first use. Null if the world has none.
+     */
+    public ColumnStore getColumnStore(String worldName) {
+        ColumnStore store = columnStores.get(worldName);
+        if (store != null) return store;
+        synchronized (this) {
+            store = columnStores.get(worldName);
+            if (store != null) return store;
+            File file = new File(mapFolder, worldName + ".columns");
+            if (!file.exists()) return null;
+            try {
+                store = ColumnStore.open(file);
+                columnStores.put(worldName, store);
+                return store;
+            } catch (IOException e) {
+                getLogger().warning("Column data unreadable for " + worldName + ": " + e.getMessage());
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * Known and rendered chunks of a world, loaded from disk on first use
+     */
+    public ChunkCoverage getCoverage(String worldName) {
+        return coverages.computeIfAbsent(worldName, w -> {
+            try {
+                return ChunkCoverage.load(new File(getMapFolder(), w + ".coverage"));
+            } catch (IOException e) {
+                getLogger().warning("Coverage unreadable for " + w + ", starting over: " + e.getMessage());
+                return new ChunkCoverage();
+            }
+        });
+    }
+    
+    void saveCoverage(String worldName) {
+        ChunkCoverage coverage = coverages.get(worldName);
+        if (coverage == null) return;
+        try {
+            coverage.save(new File(getMapFolder(), worldName + ".coverage"));
+        } catch (IOException e) {
+            getLogger().warning("Coverage save failed for " + worldName + ": " + e.getMessage());
         }
     }
     
     public File getMapFolder() { return mapFolder; }
     public Map<String, MapInfo> getRenderedMaps() { return renderedMaps; }
     public Collection<Player> getOnlinePlayers() { return getServer().getOnlinePlayers().values(); }
-    public Map<Long, BufferedImage> getMapImages() { return mapImages; }
+    public PlayerFeed getPlayerFeed() { return playerFeed; }
+    public MarkerIndex getMarkerIndex() { return markerIndex; }
+    public ViewTracker getViewTracker() { return viewTracker; }
+    public MapPacketCache getMapPacketCache() { return mapPacketCache; }
+    public MapSendQueue getMapSendQueue() { return inGameMapWall == null ? null : inGameMapWall.getSendQueue(); }
+    public MapPieceStore getMapPieceStore() { return inGameMapWall == null ? null : inGameMapWall.getPieceStore(); }
+    public Object getMapLock() { return mapLock; }
+    public boolean isRendering(String worldName) { return worldName.equals(renderingWorld); }
+    
+    /**
+     * Job of the render in progress, null if none is running
+     */
+    public MapRenderer.Job getRenderJob() {
+        PendingRender render = currentRender;
+        return render == null ? null : render.job;
+    }
+    
+    /**
+     * Null when opportunistic rendering is disabled
+     */
+    public ChunkPatcher getChunkPatcher() { return chunkPatcher; }
     
     public static class MapInfo {
         public String worldName;
@@ -493,5 +966,22 @@ public class WebMapPlugin extends PluginBase implements Listener {
         public long lastUpdate;
         public int centerX, centerZ;
         public int blockMinX, blockMaxX, blockMinZ, blockMaxZ;
+        public double pixelsPerBlock;
+        
+        public MapInfo copy() {
+            MapInfo c = new MapInfo();
+            c.worldName = worldName;
+            c.width = width;
+            c.height = height;
+            c.lastUpdate = lastUpdate;
+            c.centerX = centerX;
+            c.centerZ = centerZ;
+            c.blockMinX = blockMinX;
+            c.blockMaxX = blockMaxX;
+            c.blockMinZ = blockMinZ;
+            c.blockMaxZ = blockMaxZ;
+            c.pixelsPerBlock = pixelsPerBlock;
+            return c;
+        }
     }
 }
@@ -1,6 +1,6 @@
 package com.webmap;
 
-import cn.nukkit.Player;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -9,7 +9,12 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 
 public class WebServer {
@@ -17,6 +22,9 @@ public class WebServer {
     private final WebMapPlugin plugin;
     private final int port;
     private HttpServer server;
+    private PlayerStream playerStream;
+    private RateLimiter rateLimiter;
+    private ViewportRenderer viewportRenderer;
     
     public WebServer(WebMapPlugin plugin, int port) {
         this.plugin = plugin;
@@ -25,19 +33,43 @@ public class WebServer {
     
     public void start() throws IOException {
         server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/", new MainHandler());
-        server.createContext("/map/", new MapHandler());
-        server.createContext("/api/players", new PlayersHandler());
-        server.createContext("/api/maps", new MapsHandler());
+        rateLimiter = new RateLimiter(plugin.getRateLimitSettings());
+        addContext("/", new MainHandler(), RateLimiter.EndpointClass.PAGE, false);
+        addContext("/map/", new MapHandler(), RateLimiter.EndpointClass.MAP, true);
+        addContext("/api/players", new PlayersHandler(), RateLimiter.EndpointClass.API, false);
+        addContext("/api/players/stream", new PlayerStreamHandler(), RateLimiter.EndpointClass.STREAM, false);
+        addContext("/api/players.bin", new PlayersBinaryHandler(), RateLimiter.EndpointClass.API, false);
+        addContext("/decoder.js", new ResourceHandler("web/decoder.js", "application/javascript; charset=utf-8"), RateLimiter.EndpointClass.PAGE, false);
+        addContext("/api/maps", new MapsHandler(), RateLimiter.EndpointClass.API, false);
+        addContext("/api/stats", new StatsHandler(), RateLimiter.EndpointClass.API, false);
+        addContext("/api/render", new RenderHandler(), RateLimiter.EndpointClass.MAP, true);
+        addContext("/api/block", new BlockHandler(false), RateLimiter.EndpointClass.API, false);
+        addContext("/api/blocks", new BlockHandler(true), RateLimiter.EndpointClass.API, false);
+        addContext("/api/markers", new MarkersHandler(), RateLimiter.EndpointClass.API, false);
+        addContext("/api/trails", new TrailsHandler(), RateLimiter.EndpointClass.API, true);
+        addContext("/api/heatmap", new HeatmapHandler(), RateLimiter.EndpointClass.TILE, false);
+        addContext("/api/coverage", new CoverageHandler(), RateLimiter.EndpointClass.API, false);
+        viewportRenderer = new ViewportRenderer(plugin, plugin.getRenderCacheBytes());
         server.setExecutor(Executors.newFixedThreadPool(4));
+        
+        playerStream = new PlayerStream(() -> plugin.getPlayerFeed().getSnapshot().json(), plugin.getMarkerUpdateSeconds(), plugin.getStreamMaxSubscribers(),
+            plugin.getLogger());
+        playerStream.start();
         server.start();
     }
     
+    private void addContext(String path, HttpHandler handler, RateLimiter.EndpointClass cls, boolean largeTransfer) {
+        HttpContext ctx = server.createContext(path, handler);
+        ctx.getFilters().add(rateLimiter.filter(cls));
+        if (largeTransfer) ctx.getFilters().add(rateLimiter.transferFilter());
+    }
+    
     public void stop() {
+        if (playerStream != null) playerStream.stop();
         if (server != null) server.stop(0);
     }
     
-    private String escapeJson(String s) {
+    static String escapeJson(String s) {
         if (s == null) return "";
         return s.replace("\\", "\\\\")
                 .replace("\"", "\\\"")
@@ -46,6 +78,18 @@ public class WebServer {
                 .replace("\t", "\\t");
     }
     
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+    
     class MainHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange ex) throws IOException {
@@ -90,20 +134,21 @@ public class WebServer {
     class PlayersHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange ex) throws IOException {
-            StringBuilder json = new StringBuilder("{\"players\":[");
-            boolean first = true;
-            for (Player p : plugin.getOnlinePlayers()) {
-                if (!first) json.append(",");
-                json.append("{\"name\":\"").append(escapeJson(p.getName())).append("\"");
-                json.append(",\"world\":\"").append(escapeJson(p.getLevel().getName())).append("\"");
-                json.append(",\"x\":").append(p.getFloorX());
-                json.append(",\"y\":").append(p.getFloorY());
-                json.append(",\"z\":").append(p.getFloorZ()).append("}");
-                first = false;
+            // Pre-serialized on the main thread, nothing is built per request
+            PlayerFeed.PlayerSnapshot snapshot = plugin.getPlayerFeed().getSnapshot();
+            String since = parseQuery(ex.getRequestURI().getRawQuery()).get("since");
+            byte[] bytes;
+            if (since == null) {
+                bytes = snapshot.json();
+            } else {
+                long seq;
+                try {
+                    seq = Long.parseLong(since);
+                } catch (NumberFormatException e) {
+                    seq = -1;
+                }
+                bytes = snapshot.deltaSince(seq);
             }
-            json.append("]}");
-            
-            byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
             ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
             ex.getResponseHeaders().set("Cache-Control", "no-cache");
             ex.sendResponseHeaders(200, bytes.length);
@@ -113,6 +158,65 @@ public class WebServer {
         }
     }
     
+    class PlayersBinaryHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            boolean withNames = !"0".equals(parseQuery(ex.getRequestURI().getRawQuery()).get("names"));
+            byte[] bytes = plugin.getPlayerFeed().getSnapshot().binary(withNames);
+            ex.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.sendResponseHeaders(200, bytes.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+    
+    /**
+     * A file shipped in the plugin jar, read once
+     */
+    class ResourceHandler implements HttpHandler {
+        private final String name;
+        private final String contentType;
+        private volatile byte[] bytes;
+        
+        ResourceHandler(String name, String contentType) {
+            this.name = name;
+            this.contentType = contentType;
+        }
+        
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            byte[] data = bytes;
+            if (data == null) {
+                try (InputStream in = WebServer.class.getClassLoader().getResourceAsStream(name)) {
+                    if (in == null) {
+                        sendText(ex, 404, "Not found");
+                        return;
+                    }
+                    data = in.readAllBytes();
+                }
+                bytes = data;
+            }
+            ex.getResponseHeaders().set("Content-Type", contentType);
+            ex.getResponseHeaders().set("Cache-Control", "max-age=3600");
+            ex.sendResponseHeaders(200, data.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(data);
+            os.close();
+        }
+    }
+    
+    class PlayerStreamHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            // The exchange stays open and is written by the stream thread
+            if (!playerStream.subscribe(ex)) {
+                RateLimiter.reply(ex, 503, "Too many subscribers", 30);
+            }
+        }
+    }
+    
     class MapsHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange ex) throws IOException {
@@ -144,6 +248,410 @@ public class WebServer {
         }
     }
     
+    class RenderHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+            String world = q.get("world");
+            int x1, z1, x2, z2, w, h;
+            try {
+                x1 = Integer.parseInt(q.get("x1"));
+                z1 = Integer.parseInt(q.get("z1"));
+                x2 = Integer.parseInt(q.get("x2"));
+                z2 = Integer.parseInt(q.get("z2"));
+                if (x1 > x2) { int t = x1; x1 = x2; x2 = t; }
+                if (z1 > z2) { int t = z1; z1 = z2; z2 = t; }
+                if (x1 == x2 || z1 == z2 || world == null) throw new NumberFormatException();
+                
+                // Missing size keeps the aspect ratio, longest side 512
+                double aspect = (double) (x2 - x1) / (z2 - z1);
+                w = q.containsKey("w") ? Integer.parseInt(q.get("w")) : 0;
+                h = q.containsKey("h") ? Integer.parseInt(q.get("h")) : 0;
+                if (w <= 0 && h <= 0) {
+                    w = aspect >= 1 ? 512 : (int) Math.round(512 * aspect);
+                    h = aspect >= 1 ? (int) Math.round(512 / aspect) : 512;
+                } else if (w <= 0) {
+                    w = (int) Math.round(h * aspect);
+                } else if (h <= 0) {
+                    h = (int) Math.round(w / aspect);
+                }
+                w = Math.max(1, Math.min(ViewportRenderer.MAX_OUTPUT, w));
+                h = Math.max(1, Math.min(ViewportRenderer.MAX_OUTPUT, h));
+            } catch (NumberFormatException e) {
+                sendText(ex, 400, "Usage: /api/render?world=&x1=&z1=&x2=&z2=[&w=&h=]");
+                return;
+            }
+            
+            plugin.getViewTracker().record(world, x1, z1, x2, z2);
+            byte[] png = viewportRenderer.render(world, x1, z1, x2, z2, w, h);
+            if (png == null) {
+                sendText(ex, 404, "Not found");
+                return;
+            }
+            ex.getResponseHeaders().set("Content-Type", "image/png");
+            ex.getResponseHeaders().set("Cache-Control", "max-age=60");
+            ex.sendResponseHeaders(200, png.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(png);
+            os.close();
+        }
+    }
+    
+    /**
+     * Top block, surface height and colour at x,z, read from the column data of the last render
+     * Batch form takes points=x,z;x,z;... and never loads chunks either.
+     */
+    class BlockHandler implements HttpHandler {
+        private static final int MAX_POINTS = 256;
+        private final boolean batch;
+        
+        BlockHandler(boolean batch) {
+            this.batch = batch;
+        }
+        
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+            String world = q.get("world");
+            int[] xs, zs;
+            try {
+                if (world == null) throw new NumberFormatException();
+                if (batch) {
+                    String[] points = q.getOrDefault("points", "").split(";");
+                    if (points.length > MAX_POINTS) throw new NumberFormatException();
+                    xs = new int[points.length];
+                    zs = new int[points.length];
+                    for (int i = 0; i < points.length; i++) {
+                        int comma = points[i].indexOf(',');
+                        xs[i] = Integer.parseInt(points[i].substring(0, Math.max(0, comma)).trim());
+                        zs[i] = Integer.parseInt(points[i].substring(comma + 1).trim());
+                    }
+                } else {
+                    xs = new int[]{Integer.parseInt(q.get("x"))};
+                    zs = new int[]{Integer.parseInt(q.get("z"))};
+                }
+            } catch (NumberFormatException e) {
+                sendText(ex, 400, batch
+                    ? "Usage: /api/blocks?world=&points=x,z;x,z (max " + MAX_POINTS + ")"
+                    : "Usage: /api/block?world=&x=&z=");
+                return;
+            }
+            
+            ColumnStore store = plugin.getColumnStore(world);
+            if (store == null) {
+                sendText(ex, 404, "No column data for this world, render it first");
+                return;
+            }
+            
+            StringBuilder json = new StringBuilder(batch ? 64 + xs.length * 96 : 128);
+            json.append("{\"world\":\"").append(escapeJson(world)).append("\"");
+            if (batch) json.append(",\"blocks\":[");
+            for (int i = 0; i < xs.length; i++) {
+                long column;
+                try {
+                    column = store.get(xs[i], zs[i]);
+                } catch (ClosedChannelException e) {
+                    // A re-render swapped the file under us, use the new one
+                    store = plugin.getColumnStore(world);
+                    if (store == null) {
+                        sendText(ex, 404, "No column data for this world, render it first");
+                        return;
+                    }
+                    column = store.get(xs[i], zs[i]);
+                }
+                if (batch) json.append(i > 0 ? ",{" : "{");
+                else json.append(",");
+                appendColumn(json, xs[i], zs[i], column);
+                if (batch) json.append("}");
+            }
+            json.append(batch ? "]}" : "}");
+            
+            byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.sendResponseHeaders(200, bytes.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+        
+        private void appendColumn(StringBuilder json, int x, int z, long column) {
+            json.append("\"x\":").append(x).append(",\"z\":").append(z);
+            if (column == -1) {
+                json.append(",\"known\":false");
+                return;
+            }
+            json.append(",\"known\":true");
+            json.append(",\"id\":").append(ColumnStore.blockId(column));
+            json.append(",\"data\":").append(ColumnStore.blockData(column));
+            json.append(",\"height\":").append(ColumnStore.height(column));
+            json.append(",\"color\":\"#").append(String.format("%06x", ColumnStore.rgb(column))).append("\"");
+        }
+    }
+    
+    /**
+     * Markers of one world inside an optional bounding box, straight from the spatial index
+     */
+    class MarkersHandler implements HttpHandler {
+        private static final int MAX_RESULTS = 2000;
+        
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+            String world = q.get("world");
+            String type = q.get("type");
+            int x1 = Integer.MIN_VALUE, z1 = Integer.MIN_VALUE, x2 = Integer.MAX_VALUE, z2 = Integer.MAX_VALUE;
+            try {
+                if (world == null) throw new NumberFormatException();
+                if (q.containsKey("x1") || q.containsKey("z1") || q.containsKey("x2") || q.containsKey("z2")) {
+                    x1 = Integer.parseInt(q.get("x1"));
+                    z1 = Integer.parseInt(q.get("z1"));
+                    x2 = Integer.parseInt(q.get("x2"));
+                    z2 = Integer.parseInt(q.get("z2"));
+                    if (x1 > x2) { int t = x1; x1 = x2; x2 = t; }
+                    if (z1 > z2) { int t = z1; z1 = z2; z2 = t; }
+                }
+            } catch (NumberFormatException e) {
+                sendText(ex, 400, "Usage: /api/markers?world=[&x1=&z1=&x2=&z2=][&type=player|wall]");
+                return;
+            }
+            if (x1 != Integer.MIN_VALUE) plugin.getViewTracker().record(world, x1, z1, x2, z2);
+            
+            List<MarkerIndex.Marker> found = plugin.getMarkerIndex().query(world, x1, z1, x2, z2, type, MAX_RESULTS + 1);
+            boolean truncated = found.size() > MAX_RESULTS;
+            
+            StringBuilder json = new StringBuilder(64 + found.size() * 80);
+            json.append("{\"world\":\"").append(escapeJson(world)).append("\",\"markers\":[");
+            for (int i = 0; i < found.size() && i < MAX_RESULTS; i++) {
+                MarkerIndex.Marker m = found.get(i);
+                if (i > 0) json.append(",");
+                json.append("{\"type\":\"").append(m.type).append("\"");
+                json.append(",\"id\":\"").append(escapeJson(m.id)).append("\"");
+                json.append(",\"label\":\"").append(escapeJson(m.label)).append("\"");
+                json.append(",\"x\":").append(m.x);
+                json.append(",\"y\":").append(m.y);
+                json.append(",\"z\":").append(m.z).append("}");
+            }
+            json.append("],\"truncated\":").append(truncated).append("}");
+            
+            byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.sendResponseHeaders(200, bytes.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+    
+    /**
+     * Recorded positions of one player, streamed straight from the trail logs
+     * {"player":..,"from":..,"to":..,"worlds":{"world":[[time,x,y,z],...]},"truncated":false}
+     */
+    class TrailsHandler implements HttpHandler {
+        private static final int MAX_POINTS = 200000;
+        
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            TrailRecorder recorder = plugin.getTrailRecorder();
+            if (recorder == null) {
+                sendText(ex, 404, "Trail recording is disabled");
+                return;
+            }
+            
+            Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+            String player = q.get("player");
+            String world = q.get("world");
+            long from, to;
+            try {
+                if (player == null) throw new NumberFormatException();
+                // Default: the last hour
+                to = q.containsKey("to") ? Long.parseLong(q.get("to")) : System.currentTimeMillis();
+                from = q.containsKey("from") ? Long.parseLong(q.get("from")) : to - 3600000L;
+            } catch (NumberFormatException e) {
+                sendText(ex, 400, "Usage: /api/trails?player=[&from=&to=][&world=] (times in ms since epoch)");
+                return;
+            }
+            
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.sendResponseHeaders(200, 0);
+            Writer out = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8), 16384);
+            out.write("{\"player\":\"" + escapeJson(player) + "\",\"from\":" + from + ",\"to\":" + to + ",\"worlds\":{");
+            
+            int[] count = {0};
+            boolean[] anyWorld = {false};
+            boolean complete = recorder.scan(player, world, from, to, w -> {
+                boolean[] started = {false};
+                return (time, x, y, z) -> {
+                    if (count[0] >= MAX_POINTS) return false;
+                    if (!started[0]) {
+                        // World key only once it has a point
+                        out.write((anyWorld[0] ? "]," : "") + "\"" + escapeJson(w) + "\":[");
+                        anyWorld[0] = true;
+                        started[0] = true;
+                    } else {
+                        out.write(',');
+                    }
+                    out.write("[" + time + "," + x + "," + y + "," + z + "]");
+                    count[0]++;
+                    return true;
+                };
+            });
+            out.write((anyWorld[0] ? "]" : "") + "},\"truncated\":" + !complete + "}");
+            out.close();
+        }
+    }
+    
+    /**
+     * Heatmap overlay: tile list with versions, or one tile PNG when tx/tz are given
+     */
+    class HeatmapHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            ActivityHeatmap heatmap = plugin.getActivityHeatmap();
+            if (heatmap == null) {
+                sendText(ex, 404, "Heatmap is disabled");
+                return;
+            }
+            Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+            String world = q.get("world");
+            if (world == null) {
+                sendText(ex, 400, "Usage: /api/heatmap?world=[&tx=&tz=]");
+                return;
+            }
+            
+            byte[] bytes;
+            if (q.containsKey("tx") || q.containsKey("tz")) {
+                try {
+                    bytes = heatmap.tilePng(world, Integer.parseInt(q.get("tx")), Integer.parseInt(q.get("tz")));
+                } catch (NumberFormatException e) {
+                    sendText(ex, 400, "Usage: /api/heatmap?world=[&tx=&tz=]");
+                    return;
+                }
+                if (bytes == null) {
+                    sendText(ex, 404, "Not found");
+                    return;
+                }
+                // Tile URLs carry the version, so a cached copy is never stale
+                ex.getResponseHeaders().set("Content-Type", "image/png");
+                ex.getResponseHeaders().set("Cache-Control", q.containsKey("v") ? "max-age=86400" : "no-cache");
+            } else {
+                bytes = heatmap.tileIndex(world).getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            }
+            ex.sendResponseHeaders(200, bytes.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+    
+    class CoverageHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+            String world = q.get("world");
+            if (world == null) {
+                sendText(ex, 400, "Usage: /api/coverage?world=[&cx=&cz=]");
+                return;
+            }
+            if (!plugin.getRenderedMaps().containsKey(world)) {
+                sendText(ex, 404, "No map for this world, render it first");
+                return;
+            }
+            ChunkCoverage coverage = plugin.getCoverage(world);
+            
+            StringBuilder json = new StringBuilder(256);
+            json.append("{\"world\":\"").append(escapeJson(world)).append("\",");
+            if (q.containsKey("cx") || q.containsKey("cz")) {
+                int cx, cz;
+                try {
+                    cx = Integer.parseInt(q.get("cx"));
+                    cz = Integer.parseInt(q.get("cz"));
+                } catch (NumberFormatException e) {
+                    sendText(ex, 400, "Usage: /api/coverage?world=[&cx=&cz=]");
+                    return;
+                }
+                json.append("\"cx\":").append(cx).append(",\"cz\":").append(cz)
+                    .append(",\"exists\":").append(coverage.exists(cx, cz))
+                    .append(",\"rendered\":").append(coverage.isRendered(cx, cz))
+                    .append(",\"version\":").append(coverage.version(cx, cz));
+            } else {
+                coverage.appendJson(json);
+            }
+            json.append("}");
+            
+            byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.sendResponseHeaders(200, bytes.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+    
+    private void sendText(HttpExchange ex, int status, String msg) throws IOException {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        OutputStream os = ex.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+    
+    class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            StringBuilder json = new StringBuilder("{\"rateLimit\":");
+            rateLimiter.appendStats(json);
+            json.append(",\"streamSubscribers\":").append(playerStream.getSubscriberCount());
+            ChunkPatcher patcher = plugin.getChunkPatcher();
+            if (patcher != null) {
+                json.append(",\"patchedChunks\":").append(patcher.getPatchedChunks());
+                json.append(",\"pendingChunks\":").append(patcher.getPendingChunks());
+            }
+            MapPacketCache packets = plugin.getMapPacketCache();
+            if (packets != null) {
+                json.append(",\"mapPackets\":");
+                packets.appendStats(json);
+            }
+            MapPieceStore pieces = plugin.getMapPieceStore();
+            if (pieces != null) {
+                json.append(",\"wallPieces\":");
+                pieces.appendStats(json);
+            }
+            MapSendQueue sendQueue = plugin.getMapSendQueue();
+            if (sendQueue != null) {
+                json.append(",\"wallSend\":");
+                sendQueue.appendStats(json);
+            }
+            LoadGovernor governor = plugin.getLoadGovernor();
+            if (governor != null) {
+                json.append(",\"throttle\":");
+                governor.appendStats(json);
+            }
+            MapRenderer.Job job = plugin.getRenderJob();
+            if (job != null) {
+                json.append(",\"render\":{\"world\":\"").append(job.getWorld())
+                    .append("\",\"phase\":\"").append(job.isDiscovering() ? "scanning" : "drawing")
+                    .append("\",\"done\":").append(job.getDone())
+                    .append(",\"total\":").append(job.getTotal()).append("}");
+            }
+            json.append("}");
+            
+            byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.sendResponseHeaders(200, bytes.length);
+            OutputStream os = ex.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+    
     private byte[] readFile(File file) throws IOException {
         FileInputStream fis = new FileInputStream(file);
         byte[] data = new byte[(int) file.length()];
@@ -175,8 +683,13 @@ public class WebServer {
 ".map-wrap:active{cursor:grabbing}\n" +
 "#mapImg{display:block;image-rendering:pixelated;image-rendering:-moz-crisp-edges;image-rendering:crisp-edges;transform-origin:0 0}\n" +
 "#markers{position:absolute;top:0;left:0;pointer-events:none}\n" +
+"#heat{position:absolute;top:0;left:0;pointer-events:none;overflow:hidden}\n" +
+"#heat img{position:absolute;opacity:.85}\n" +
+"#cov{position:absolute;top:0;left:0;pointer-events:none;overflow:hidden;display:none}\n" +
+"#cov canvas{position:absolute;image-rendering:pixelated;image-rendering:crisp-edges}\n" +
 ".player{position:absolute;width:12px;height:12px;background:#ff3333;border:2px solid #fff;border-radius:50%;transform:translate(-50%,-50%);z-index:100;pointer-events:auto;box-shadow:0 0 6px rgba(255,0,0,0.8)}\n" +
-".player .tag{position:absolute;bottom:100%;left:50%;transform:translateX(-50%);background:rgba(0,0,0,.9);padding:3px 8px;white-space:nowrap;font-size:13px;margin-bottom:4px;border-radius:3px}\n" +
+".wall{position:absolute;width:12px;height:12px;background:#ffcc33;border:2px solid #fff;transform:translate(-50%,-50%);z-index:90;pointer-events:auto}\n" +
+".player .tag,.wall .tag{position:absolute;bottom:100%;left:50%;transform:translateX(-50%);background:rgba(0,0,0,.9);padding:3px 8px;white-space:nowrap;font-size:13px;margin-bottom:4px;border-radius:3px}\n" +
 ".ctrl{position:absolute;top:10px;right:10px;z-index:200;display:flex;flex-direction:column;gap:5px}\n" +
 ".ctrl .mc-btn{width:40px;height:40px;font-size:22px;padding:0}\n" +
 ".status{position:absolute;bottom:10px;left:10px;background:rgba(0,0,0,.85);padding:6px 12px;font-size:14px;border-radius:4px}\n" +
@@ -202,9 +715,13 @@ public class WebServer {
 "<button class=\"mc-btn\" onclick=\"zoomIn()\" title=\"Zoom In\">+</button>\n" +
 "<button class=\"mc-btn\" onclick=\"zoomOut()\" title=\"Zoom Out\">-</button>\n" +
 "<button class=\"mc-btn\" onclick=\"resetZoom()\" title=\"Reset\">R</button>\n" +
+"<button class=\"mc-btn\" id=\"heatBtn\" onclick=\"toggleHeat()\" title=\"Activity heatmap\">H</button>\n" +
+"<button class=\"mc-btn\" id=\"covBtn\" onclick=\"toggleCov()\" title=\"Rendered chunks\">C</button>\n" +
 "</div>\n" +
 "<div class=\"map-wrap\" id=\"wrap\">\n" +
 "<img id=\"mapImg\" onload=\"onImgLoad()\">\n" +
+"<div id=\"cov\"><canvas></canvas></div>\n" +
+"<div id=\"heat\"></div>\n" +
 "<div id=\"markers\"></div>\n" +
 "</div>\n" +
 "<div class=\"status\">X: <span id=\"posX\">-</span>, Z: <span id=\"posZ\">-</span></div>\n" +
@@ -236,6 +753,8 @@ public class WebServer {
 "  world=n;\n" +
 "  var btns=document.querySelectorAll('#worlds .mc-btn');\n" +
 "  btns.forEach(function(b){b.classList.toggle('active',b.textContent===n);});\n" +
+"  clearHeat();\n" +
+"  loadHeat();\n" +
 "  loadImg();\n" +
 "}\n" +
 "function loadImg(){\n" +
@@ -246,6 +765,7 @@ public class WebServer {
 "  imgW=img.naturalWidth;\n" +
 "  imgH=img.naturalHeight;\n" +
 "  resetZoom();\n" +
+"  loadCov();\n" +
 "}\n" +
 "function resetZoom(){\n" +
 "  var wrap=document.getElementById('wrap');\n" +
@@ -255,42 +775,171 @@ public class WebServer {
 "  if(zoom<0.05)zoom=0.05;\n" +
 "  applyZoom();\n" +
 "}\n" +
+"var feedSeq=-1,feedPlayers={};\n" +
 "function updatePlayers(){\n" +
-"  fetch('/api/players').then(function(r){return r.json();}).then(function(d){\n" +
-"    players=d.players;\n" +
-"    document.getElementById('cnt').textContent=players.length;\n" +
-"    var l=document.getElementById('plist');\n" +
-"    l.innerHTML='';\n" +
-"    players.forEach(function(p){\n" +
-"      var li=document.createElement('li');\n" +
-"      li.className='pitem';\n" +
-"      li.innerHTML='<b>'+p.name+'</b><br><small>'+p.world+': '+p.x+', '+p.y+', '+p.z+'</small>';\n" +
-"      li.onclick=function(){focusPlayer(p);};\n" +
-"      l.appendChild(li);\n" +
-"    });\n" +
-"    updateMarkers();\n" +
+"  fetch('/api/players?since='+feedSeq).then(function(r){return r.json();}).then(function(d){\n" +
+"    if(d.full)feedPlayers={};\n" +
+"    d.players.forEach(function(p){feedPlayers[p.name]=p;});\n" +
+"    d.left.forEach(function(n){delete feedPlayers[n];});\n" +
+"    feedSeq=d.seq;\n" +
+"    applyPlayers({players:Object.keys(feedPlayers).map(function(k){return feedPlayers[k];})});\n" +
+"  });\n" +
+"}\n" +
+"function startStream(){\n" +
+"  if(!window.EventSource){updatePlayers();setInterval(updatePlayers,2000);return;}\n" +
+"  var es=new EventSource('/api/players/stream');\n" +
+"  es.onmessage=function(e){applyPlayers(JSON.parse(e.data));};\n" +
+"  es.onerror=function(){\n" +
+"    if(es.readyState===EventSource.CLOSED){updatePlayers();setInterval(updatePlayers,2000);}\n" +
+"  };\n" +
+"}\n" +
+"function applyPlayers(d){\n" +
+"  players=d.players;\n" +
+"  document.getElementById('cnt').textContent=players.length;\n" +
+"  var l=document.getElementById('plist');\n" +
+"  l.innerHTML='';\n" +
+"  players.forEach(function(p){\n" +
+"    var li=document.createElement('li');\n" +
+"    li.className='pitem';\n" +
+"    li.innerHTML='<b>'+p.name+'</b><br><small>'+p.world+': '+p.x+', '+p.y+', '+p.z+'</small>';\n" +
+"    li.onclick=function(){focusPlayer(p);};\n" +
+"    l.appendChild(li);\n" +
 "  });\n" +
+"  updateMarkers();\n" +
+"}\n" +
+"var markerEls={},walls=[],wallTimer=0,markerFrame=0;\n" +
+"function viewBox(m){\n" +
+"  var wrap=document.getElementById('wrap'),pad=64;\n" +
+"  var sx=(m.maxX-m.minX)/(imgW*zoom),sz=(m.maxZ-m.minZ)/(imgH*zoom);\n" +
+"  return {x1:Math.floor(m.minX+wrap.scrollLeft*sx)-pad,z1:Math.floor(m.minZ+wrap.scrollTop*sz)-pad,\n" +
+"    x2:Math.ceil(m.minX+(wrap.scrollLeft+wrap.clientWidth)*sx)+pad,z2:Math.ceil(m.minZ+(wrap.scrollTop+wrap.clientHeight)*sz)+pad};\n" +
+"}\n" +
+"function placeMarker(key,cls,label,x,z,m,seen){\n" +
+"  var el=markerEls[key];\n" +
+"  if(!el){\n" +
+"    el=document.createElement('div');\n" +
+"    el.className=cls;\n" +
+"    el.innerHTML='<div class=\"tag\"></div>';\n" +
+"    el.firstChild.textContent=label;\n" +
+"    document.getElementById('markers').appendChild(el);\n" +
+"    markerEls[key]=el;\n" +
+"  }\n" +
+"  el.style.left=(x-m.minX)/(m.maxX-m.minX)*100+'%';\n" +
+"  el.style.top=(z-m.minZ)/(m.maxZ-m.minZ)*100+'%';\n" +
+"  seen[key]=1;\n" +
 "}\n" +
 "function updateMarkers(){\n" +
-"  var c=document.getElementById('markers');\n" +
-"  c.innerHTML='';\n" +
-"  var m=info[world];\n" +
-"  if(!m||!imgW)return;\n" +
-"  var img=document.getElementById('mapImg');\n" +
-"  c.style.width=img.style.width;\n" +
-"  c.style.height=img.style.height;\n" +
-"  var rangeX=m.maxX-m.minX,rangeZ=m.maxZ-m.minZ;\n" +
-"  players.filter(function(p){return p.world===world;}).forEach(function(p){\n" +
-"    var px=(p.x-m.minX)/rangeX*100;\n" +
-"    var pz=(p.z-m.minZ)/rangeZ*100;\n" +
-"    if(px>=0&&px<=100&&pz>=0&&pz<=100){\n" +
-"      var d=document.createElement('div');\n" +
-"      d.className='player';\n" +
-"      d.style.left=px+'%';\n" +
-"      d.style.top=pz+'%';\n" +
-"      d.innerHTML='<div class=\"tag\">'+p.name+'</div>';\n" +
-"      c.appendChild(d);\n" +
-"    }\n" +
+"  var c=document.getElementById('markers'),m=info[world],seen={};\n" +
+"  if(m&&imgW){\n" +
+"    var img=document.getElementById('mapImg');\n" +
+"    c.style.width=img.style.width;\n" +
+"    c.style.height=img.style.height;\n" +
+"    var v=viewBox(m);\n" +
+"    var vis=function(x,z){return x>=v.x1&&x<v.x2&&z>=v.z1&&z<v.z2&&x>=m.minX&&x<=m.maxX&&z>=m.minZ&&z<=m.maxZ;};\n" +
+"    players.forEach(function(p){if(p.world===world&&vis(p.x,p.z))placeMarker('p:'+p.name,'player',p.name,p.x,p.z,m,seen);});\n" +
+"    walls.forEach(function(w){if(w.world===world&&vis(w.x,w.z))placeMarker('w:'+w.id,'wall',w.label,w.x,w.z,m,seen);});\n" +
+"  }\n" +
+"  Object.keys(markerEls).forEach(function(k){\n" +
+"    if(!seen[k]){c.removeChild(markerEls[k]);delete markerEls[k];}\n" +
+"  });\n" +
+"}\n" +
+"function loadWalls(){\n" +
+"  clearTimeout(wallTimer);\n" +
+"  wallTimer=setTimeout(function(){\n" +
+"    var m=info[world],w=world;\n" +
+"    if(!m||!imgW)return;\n" +
+"    var v=viewBox(m);\n" +
+"    fetch('/api/markers?type=wall&world='+encodeURIComponent(w)+'&x1='+v.x1+'&z1='+v.z1+'&x2='+v.x2+'&z2='+v.z2)\n" +
+"      .then(function(r){return r.json();}).then(function(d){\n" +
+"        if(w!==world)return;\n" +
+"        walls=d.markers.map(function(k){k.world=w;return k;});\n" +
+"        updateMarkers();\n" +
+"      });\n" +
+"  },300);\n" +
+"}\n" +
+"document.getElementById('wrap').onscroll=function(){\n" +
+"  cancelAnimationFrame(markerFrame);\n" +
+"  markerFrame=requestAnimationFrame(updateMarkers);\n" +
+"  loadWalls();\n" +
+"};\n" +
+"var heatOn=false,heatTiles={},heatTimer=0;\n" +
+"function toggleHeat(){\n" +
+"  heatOn=!heatOn;\n" +
+"  document.getElementById('heatBtn').classList.toggle('active',heatOn);\n" +
+"  clearInterval(heatTimer);\n" +
+"  clearHeat();\n" +
+"  if(heatOn){loadHeat();heatTimer=setInterval(loadHeat,30000);}\n" +
+"}\n" +
+"function clearHeat(){\n" +
+"  document.getElementById('heat').innerHTML='';\n" +
+"  heatTiles={};\n" +
+"}\n" +
+"function loadHeat(){\n" +
+"  var w=world;\n" +
+"  if(!heatOn||!info[w])return;\n" +
+"  fetch('/api/heatmap?world='+encodeURIComponent(w)).then(function(r){return r.json();}).then(function(d){\n" +
+"    if(w!==world||!heatOn)return;\n" +
+"    var m=info[w],layer=document.getElementById('heat'),size=d.tileChunks*16,seen={};\n" +
+"    var rangeX=m.maxX-m.minX,rangeZ=m.maxZ-m.minZ;\n" +
+"    d.tiles.forEach(function(t){\n" +
+"      var k=t[0]+','+t[1],el=heatTiles[k];\n" +
+"      seen[k]=1;\n" +
+"      if(!el){\n" +
+"        el=document.createElement('img');\n" +
+"        el.style.left=(t[0]*size-m.minX)/rangeX*100+'%';\n" +
+"        el.style.top=(t[1]*size-m.minZ)/rangeZ*100+'%';\n" +
+"        el.style.width=size/rangeX*100+'%';\n" +
+"        el.style.height=size/rangeZ*100+'%';\n" +
+"        layer.appendChild(el);\n" +
+"        heatTiles[k]=el;\n" +
+"      }\n" +
+"      // Only tiles whose version changed are downloaded again\n" +
+"      if(el.dataset.v!==String(t[2])){\n" +
+"        el.dataset.v=t[2];\n" +
+"        el.src='/api/heatmap?world='+encodeURIComponent(w)+'&tx='+t[0]+'&tz='+t[1]+'&v='+t[2];\n" +
+"      }\n" +
+"    });\n" +
+"    Object.keys(heatTiles).forEach(function(k){\n" +
+"      if(!seen[k]){layer.removeChild(heatTiles[k]);delete heatTiles[k];}\n" +
+"    });\n" +
+"  });\n" +
+"}\n" +
+"var covOn=false;\n" +
+"function toggleCov(){\n" +
+"  covOn=!covOn;\n" +
+"  document.getElementById('covBtn').classList.toggle('active',covOn);\n" +
+"  document.getElementById('cov').style.display=covOn?'block':'none';\n" +
+"  loadCov();\n" +
+"}\n" +
+"function loadCov(){\n" +
+"  var w=world;\n" +
+"  if(!covOn||!info[w])return;\n" +
+"  fetch('/api/coverage?world='+encodeURIComponent(w)).then(function(r){return r.json();}).then(function(d){\n" +
+"    if(w!==world||!covOn)return;\n" +
+"    var m=info[w],n=d.regionChunks,c=document.querySelector('#cov canvas');\n" +
+"    var cx0=Math.floor(m.minX/16),cz0=Math.floor(m.minZ/16);\n" +
+"    var cw=Math.floor((m.maxX-1)/16)-cx0+1,ch=Math.floor((m.maxZ-1)/16)-cz0+1;\n" +
+"    var rangeX=m.maxX-m.minX,rangeZ=m.maxZ-m.minZ;\n" +
+"    c.width=cw;c.height=ch;\n" +
+"    c.style.left=(cx0*16-m.minX)/rangeX*100+'%';\n" +
+"    c.style.top=(cz0*16-m.minZ)/rangeZ*100+'%';\n" +
+"    c.style.width=cw*16/rangeX*100+'%';\n" +
+"    c.style.height=ch*16/rangeZ*100+'%';\n" +
+"    // One pixel per chunk: dark = no chunk, amber = chunk not on the map yet, clear = rendered\n" +
+"    var ctx=c.getContext('2d'),img=ctx.createImageData(cw,ch),px=img.data,i;\n" +
+"    for(i=3;i<px.length;i+=4)px[i]=150;\n" +
+"    d.regions.forEach(function(r){\n" +
+"      var ex=atob(r[2]),rd=atob(r[3]),b,x,z,o;\n" +
+"      for(b=0;b<n*n;b++){\n" +
+"        if(!(ex.charCodeAt(b>>3)>>(b&7)&1))continue;\n" +
+"        x=r[0]*n+b%n-cx0;z=r[1]*n+Math.floor(b/n)-cz0;\n" +
+"        if(x<0||z<0||x>=cw||z>=ch)continue;\n" +
+"        o=(z*cw+x)*4;\n" +
+"        if(rd.charCodeAt(b>>3)>>(b&7)&1)px[o+3]=0;\n" +
+"        else{px[o]=255;px[o+1]=190;px[o+2]=0;px[o+3]=140;}\n" +
+"      }\n" +
+"    });\n" +
+"    ctx.putImageData(img,0,0);\n" +
 "  });\n" +
 "}\n" +
 "function focusPlayer(p){\n" +
@@ -314,8 +963,15 @@ public class WebServer {
 "  var w=Math.round(imgW*zoom),h=Math.round(imgH*zoom);\n" +
 "  img.style.width=w+'px';\n" +
 "  img.style.height=h+'px';\n" +
+"  var heat=document.getElementById('heat');\n" +
+"  heat.style.width=img.style.width;\n" +
+"  heat.style.height=img.style.height;\n" +
+"  var cov=document.getElementById('cov');\n" +
+"  cov.style.width=img.style.width;\n" +
+"  cov.style.height=img.style.height;\n" +
 "  document.getElementById('zm').textContent=Math.round(zoom*100);\n" +
 "  updateMarkers();\n" +
+"  loadWalls();\n" +
 "}\n" +
 "document.getElementById('wrap').onmousemove=function(e){\n" +
 "  var m=info[world];\n" +
@@ -330,8 +986,7 @@ public class WebServer {
 "  document.getElementById('posZ').textContent=wz;\n" +
 "};\n" +
 "loadMaps();\n" +
-"updatePlayers();\n" +
-"setInterval(updatePlayers,2000);\n" +
+"startStream();\n" +
 "setInterval(loadImg,180000);\n" +
 "</script>\n" +
 "</body>\n" +
@@ -0,0 +1,21 @@
+// Reference decoder for /api/players.bin, see the README for the frame layout.
+// decodePlayersBin(arrayBuffer) -> {seq, players: [{id, world, x, y, z[, name]}]}
+// Names are only in frames fetched without ?names=0; keep them by id.
+function decodePlayersBin(buf) {
+  var b = new Uint8Array(buf), pos = 4, td = new TextDecoder(), i, n;
+  if (b[0] !== 87 || b[1] !== 77 || b[2] !== 1) throw new Error('Unknown frame');
+  // Unsigned LEB128; multiplication keeps values above 2^31 exact (seq is a millisecond time)
+  function vu() { var r = 0, m = 1, c; do { c = b[pos++]; r += (c & 127) * m; m *= 128; } while (c & 128); return r; }
+  function vz() { var v = vu(); return v % 2 ? -(v + 1) / 2 : v / 2; }
+  function str() { var l = vu(), t = td.decode(b.subarray(pos, pos + l)); pos += l; return t; }
+  var names = b[3] & 1, seq = vu(), worlds = [], list = [];
+  for (i = 0, n = vu(); i < n; i++) worlds.push(str());
+  for (i = 0, n = vu(); i < n; i++) {
+    var p = {id: vu()};
+    p.world = worlds[vu()]; p.x = vz(); p.y = vz(); p.z = vz();
+    if (names) p.name = str();
+    list.push(p);
+  }
+  return {seq: seq, players: list};
+}
+if (typeof module !== 'undefined') module.exports = decodePlayersBin;